@@ -0,0 +1,61 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks jar. Accepts the same options as JMH, but writes
+ * results in JSON format to {@code jmh-result.json} unless another result
+ * format or file is specified, so that results of different commits can be
+ * compared by tools.
+ * 
+ * @author Mikolaj Izdebski
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws RunnerException {
+    CommandLineOptions cmd;
+    try {
+      cmd = new CommandLineOptions(args);
+    } catch (CommandLineOptionException e) {
+      System.err.println("Error parsing command line: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams()
+            || cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+      try {
+        org.openjdk.jmh.Main.main(args);
+      } catch (Exception e) {
+        throw new RunnerException(e);
+      }
+      return;
+    }
+
+    OptionsBuilder options = new OptionsBuilder();
+    options.parent(cmd);
+    if (!cmd.getResultFormat().hasValue())
+      options.resultFormat(ResultFormatType.JSON);
+    if (!cmd.getResult().hasValue())
+      options.result("jmh-result.json");
+    new Runner(options.build()).run();
+  }
+}
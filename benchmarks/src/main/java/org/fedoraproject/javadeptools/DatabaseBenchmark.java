@@ -0,0 +1,201 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of building, writing and loading database, preparing it for
+ * dependency resolution and minimizing sets of alternatives.
+ * 
+ * @author Mikolaj Izdebski
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+  @Param({ "200" })
+  public int packages;
+
+  @Param({ "50" })
+  public int classes;
+
+  // Whether to index Java packages instead of classes.
+  @Param({ "false", "true" })
+  public boolean coarse;
+
+  private File dir;
+  private File rpmDir;
+  private File dbFile;
+  private Database db;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    NullOutputStream.silenceStandardError();
+    dir = SyntheticRepository.createTempDir("database-benchmark");
+    rpmDir = new File(dir, "rpms");
+    new SyntheticRepository(1, packages, classes, 16, 0.1).writeRpms(rpmDir);
+
+    db = new Database(rpmDir, null, null, 0, null, coarse);
+    dbFile = new File(dir, "db");
+    OutputStream os = new FileOutputStream(dbFile);
+    try {
+      db.write(os, false);
+    } finally {
+      os.close();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    SyntheticRepository.delete(dir);
+  }
+
+  /**
+   * Database freshly loaded before each invocation, so that lazily computed
+   * state is not reused.
+   */
+  @State(Scope.Thread)
+  public static class Fresh {
+    Database db;
+
+    @Setup(Level.Invocation)
+    public void setup(DatabaseBenchmark benchmark) throws IOException {
+      db = new Database(benchmark.dbFile);
+    }
+  }
+
+  /**
+   * Prepared database and a list of sets of alternatives to be minimized.
+   */
+  @State(Scope.Thread)
+  public static class Alternatives {
+    Database db;
+    int[] deps;
+
+    @Setup(Level.Trial)
+    public void setup(DatabaseBenchmark benchmark) throws IOException {
+      db = new Database(benchmark.dbFile);
+      db.prepare();
+
+      Random random = new Random(1);
+      deps = new int[256];
+      for (int i = 0; i < deps.length; i++) {
+        int[] set = new int[1 + random.nextInt(4)];
+        for (int k = 0; k < set.length; k++)
+          set[k] = random.nextInt(benchmark.packages);
+        Arrays.sort(set);
+        IntList members = new IntList();
+        for (int k = 0; k < set.length; k++)
+          if (k == 0 || set[k] != set[k - 1])
+            members.add(set[k]);
+        deps[i] = db.alternatives.intern(members);
+      }
+    }
+  }
+
+  /**
+   * Build database from RPM files.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public Object build() throws IOException {
+    return new Database(rpmDir, null, null, 0, null, coarse);
+  }
+
+  /**
+   * Build database from RPM files, spilling packages to disk every megabyte.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public Object buildSpilled() throws IOException {
+    return new Database(rpmDir, null, dir, 1 << 20, null, coarse);
+  }
+
+  /**
+   * Write database to a stream.
+   */
+  @Benchmark
+  public void write() throws IOException {
+    db.write(new NullOutputStream(), false);
+  }
+
+  /**
+   * Load database from a file.
+   */
+  @Benchmark
+  public Object load() throws IOException {
+    return new Database(dbFile);
+  }
+
+  /**
+   * Prepare freshly loaded database for dependency resolution.
+   */
+  @Benchmark
+  public Object prepare(Fresh fresh) {
+    fresh.db.prepare();
+    return fresh.db;
+  }
+
+  /**
+   * Resolve dependencies of all packages of freshly loaded database.
+   */
+  @Benchmark
+  public void resolveAll(Fresh fresh) throws IOException, QueryException {
+    fresh.db.query_requires(
+            ResultWriter.create("text", new NullOutputStream()),
+            new String[] { "*" }, false, false);
+  }
+
+  /**
+   * Remove sets of alternatives which are subsets of other sets.
+   */
+  @Benchmark
+  public Object optimizeSubsets(Alternatives alternatives) {
+    IntList deps = new IntList(alternatives.deps.length);
+    deps.addAll(alternatives.deps, 0, alternatives.deps.length);
+    deps.sortUnique();
+    alternatives.db.optimize_subsets(deps);
+    return deps;
+  }
+}
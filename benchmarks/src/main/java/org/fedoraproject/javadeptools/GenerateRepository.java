@@ -0,0 +1,80 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.File;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Command line front-end of {@link SyntheticRepository}, writing synthetic
+ * jar files and RPM files built from them.
+ * 
+ * @author Mikolaj Izdebski
+ */
+public class GenerateRepository {
+  private static Options options = new Options();
+  static {
+    options.addOption("n", "packages", true, "number of packages (default 1000)");
+    options.addOption("k", "classes", true,
+            "number of classes in each package (default 50)");
+    options.addOption("f", "fan-out", true,
+            "number of classes referenced by each class (default 16)");
+    options.addOption("o", "overlap", true,
+            "fraction of packages bundling classes of another package (default 0.1)");
+    options.addOption("s", "seed", true, "seed of pseudo-random choices (default 1)");
+    options.addOption("j", "jars", true, "write jar files to given directory");
+    options.addOption("r", "rpms", true, "write RPM files to given directory");
+    options.addOption("h", "help", false, "print help about usage and exit");
+  }
+
+  /**
+   * Create generator configured by given command line.
+   */
+  static SyntheticRepository repository(CommandLine line, int nPackages) {
+    return new SyntheticRepository(Long.parseLong(line.getOptionValue("seed",
+            "1")), nPackages, Integer.parseInt(line.getOptionValue("classes",
+            "50")), Integer.parseInt(line.getOptionValue("fan-out", "16")),
+            Double.parseDouble(line.getOptionValue("overlap", "0.1")));
+  }
+
+  public static void main(String[] args) throws Exception {
+    CommandLine line;
+    try {
+      line = new GnuParser().parse(options, args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+      return;
+    }
+    if (line.hasOption("help")
+            || !(line.hasOption("jars") || line.hasOption("rpms"))) {
+      new HelpFormatter().printHelp("GenerateRepository", options);
+      System.exit(line.hasOption("help") ? 0 : 1);
+    }
+
+    SyntheticRepository repo = repository(line,
+            Integer.parseInt(line.getOptionValue("packages", "1000")));
+    if (line.hasOption("jars"))
+      repo.writeJars(new File(line.getOptionValue("jars")));
+    if (line.hasOption("rpms"))
+      repo.writeRpms(new File(line.getOptionValue("rpms")));
+  }
+}
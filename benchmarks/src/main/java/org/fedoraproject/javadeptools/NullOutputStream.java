@@ -0,0 +1,42 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Output stream discarding everything written to it.
+ * 
+ * @author Mikolaj Izdebski
+ */
+class NullOutputStream extends OutputStream {
+  @Override
+  public void write(int b) {
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+  }
+
+  /**
+   * Discard progress messages which database prints to standard error, so
+   * that they don't flood benchmark output.
+   */
+  static void silenceStandardError() {
+    System.setErr(new PrintStream(new NullOutputStream()));
+  }
+}
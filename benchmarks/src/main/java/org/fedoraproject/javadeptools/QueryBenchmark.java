@@ -0,0 +1,186 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of queries on a loaded database whose lazily computed state is
+ * already warm, like in a resident query server.
+ * 
+ * @author Mikolaj Izdebski
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+  @Param({ "500" })
+  public int packages;
+
+  @Param({ "50" })
+  public int classes;
+
+  private File dir;
+  private Database db;
+  private SyntheticRepository repo;
+  private ResultWriter out;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, QueryException {
+    NullOutputStream.silenceStandardError();
+    dir = SyntheticRepository.createTempDir("query-benchmark");
+    File rpmDir = new File(dir, "rpms");
+    repo = new SyntheticRepository(1, packages, classes, 16, 0.1);
+    repo.writeRpms(rpmDir);
+
+    File dbFile = new File(dir, "db");
+    OutputStream os = new FileOutputStream(dbFile);
+    try {
+      new Database(rpmDir, null).write(os, false);
+    } finally {
+      os.close();
+    }
+
+    db = new Database(dbFile);
+    out = ResultWriter.create("text", new NullOutputStream());
+    db.query_requires(out, new String[] { "*" }, false, false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    SyntheticRepository.delete(dir);
+  }
+
+  /**
+   * Writer of results in one of supported formats.
+   */
+  @State(Scope.Thread)
+  public static class Output {
+    @Param({ "text", "jsonl", "tsv", "dot" })
+    public String format;
+
+    ResultWriter out;
+
+    @Setup(Level.Trial)
+    public void setup() throws QueryException {
+      out = ResultWriter.create(format, new NullOutputStream());
+    }
+  }
+
+  private String pkg() {
+    return repo.packageName(packages / 2);
+  }
+
+  @Benchmark
+  public void requires() throws IOException, QueryException {
+    db.query_requires(out, new String[] { pkg() }, false, false);
+  }
+
+  @Benchmark
+  public void requiresAll() throws IOException, QueryException {
+    db.query_requires(out, new String[] { "*" }, false, false);
+  }
+
+  @Benchmark
+  public void requiresRecursive() throws IOException, QueryException {
+    db.query_requires(out, new String[] { pkg() }, true, true);
+  }
+
+  @Benchmark
+  public void requiresRecursiveAll() throws IOException, QueryException {
+    db.query_requires(out, new String[] { "*" }, true, true);
+  }
+
+  @Benchmark
+  public void whatRequires() throws IOException, QueryException {
+    db.query_what_requires(out, new String[] { pkg() }, false, false);
+  }
+
+  @Benchmark
+  public void whatRequiresAlternatives() throws IOException, QueryException {
+    db.query_what_requires(out, new String[] { pkg() }, false, true);
+  }
+
+  @Benchmark
+  public void whatRequiresRecursive() throws IOException, QueryException {
+    db.query_what_requires(out, new String[] { pkg() }, true, true);
+  }
+
+  @Benchmark
+  public void cycles() throws IOException, QueryException {
+    db.query_cycles(out, new String[0], true);
+  }
+
+  @Benchmark
+  public void provides() throws IOException, QueryException {
+    db.query_provides(out, pkg());
+  }
+
+  @Benchmark
+  public void whatProvidesExact() throws IOException {
+    db.query_what_provides(out, repo.className(packages / 2, 0));
+  }
+
+  @Benchmark
+  public void whatProvidesPrefix() throws IOException {
+    db.query_what_provides(out, "org.synthetic.p00001.*");
+  }
+
+  @Benchmark
+  public void whatProvidesPattern() throws IOException {
+    db.query_what_provides(out, "*.s1.C000?");
+  }
+
+  @Benchmark
+  public void why() throws IOException, QueryException {
+    db.query_why(out, "*", pkg());
+  }
+
+  @Benchmark
+  public void list() throws IOException {
+    db.list_packages(out);
+  }
+
+  /**
+   * Print classes of all packages, which is dominated by writing results.
+   */
+  @Benchmark
+  public void providesAll(Output output) throws IOException, QueryException {
+    db.query_provides(output.out, "*");
+    output.out.finish();
+  }
+}
@@ -0,0 +1,94 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Wrapper running java-deptools in a JVM started by {@link ScaleTest}, which
+ * records resource usage of the JVM when it exits.
+ * <p>
+ * Usage: {@code ScaleProbe STATS-FILE [java-deptools arguments...]}. When the
+ * JVM exits, a single line with peak resident set size in kilobytes (or -1
+ * if it can't be determined) and total time spent in garbage collection in
+ * milliseconds is written to STATS-FILE, separated with a tab.
+ * 
+ * @author Mikolaj Izdebski
+ */
+public class ScaleProbe {
+  /**
+   * Get peak resident set size of this process in kilobytes, or -1 if it
+   * can't be determined. Only Linux is supported.
+   */
+  static long peak_rss() {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(
+              "/proc/self/status"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null)
+          if (line.startsWith("VmHWM:"))
+            return Long.parseLong(line.replaceAll("[^0-9]", ""));
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+    } catch (NumberFormatException e) {
+    }
+    return -1;
+  }
+
+  /**
+   * Get total time this JVM spent in garbage collection, in milliseconds.
+   */
+  static long gc_time() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory
+            .getGarbageCollectorMXBeans())
+      if (gc.getCollectionTime() > 0)
+        total += gc.getCollectionTime();
+    return total;
+  }
+
+  public static void main(String[] args) {
+    final File stats = new File(args[0]);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        try {
+          PrintWriter writer = new PrintWriter(stats);
+          try {
+            writer.println(peak_rss() + "\t" + gc_time());
+          } finally {
+            writer.close();
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+
+    String[] mainArgs = new String[args.length - 1];
+    System.arraycopy(args, 1, mainArgs, 0, mainArgs.length);
+    Main.main(mainArgs);
+  }
+}
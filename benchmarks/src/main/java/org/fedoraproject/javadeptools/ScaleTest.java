@@ -0,0 +1,294 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * End-to-end scale test. For each scale step a synthetic repository with
+ * given number of packages is generated, database is built from it and
+ * queries are run on it, each in a separate JVM, exactly like java-deptools
+ * is used from the command line.
+ * <p>
+ * For each step and phase (build or query) wall time, peak resident set size,
+ * garbage collection time and database size are recorded and written as a
+ * tab-separated table. If a table written by a previous run is given as
+ * baseline, the run fails if any of the metrics regressed by more than given
+ * tolerance.
+ * 
+ * @author Mikolaj Izdebski
+ */
+public class ScaleTest {
+  private static final String[] COLUMNS = { "packages", "phase", "wall_ms",
+      "peak_rss_kb", "gc_ms", "db_bytes" };
+  // Absolute differences of metrics which are never reported as regressions,
+  // as they are within noise of measurement.
+  private static final long[] SLACK = { 0, 0, 200, 32768, 50, 0 };
+
+  private static Options options = new Options();
+  static {
+    options.addOption("t", "steps", true,
+            "comma-separated numbers of packages of scale steps (default 500,1000,2000)");
+    options.addOption("k", "classes", true,
+            "number of classes in each package (default 50)");
+    options.addOption("f", "fan-out", true,
+            "number of classes referenced by each class (default 16)");
+    options.addOption("o", "overlap", true,
+            "fraction of packages bundling classes of another package (default 0.1)");
+    options.addOption("s", "seed", true, "seed of pseudo-random choices (default 1)");
+    options.addOption("i", "inputs", true,
+            "build database from \"rpm\" (default) or \"jar\" files");
+    options.addOption("J", "jvm-args", true,
+            "space-separated arguments of JVMs running java-deptools (default -Xmx4g)");
+    options.addOption("m", "memory-budget", true,
+            "build databases with given memory budget in megabytes, spilling packages to disk");
+    options.addOption("w", "work-dir", true,
+            "directory to generate repositories in (default temporary directory, deleted afterwards)");
+    options.addOption("O", "output", true,
+            "write results to given file (default scale-results.tsv)");
+    options.addOption("B", "baseline", true,
+            "fail if results regressed compared to results in given file");
+    options.addOption("T", "tolerance", true,
+            "allowed relative regression compared to baseline (default 0.25)");
+    options.addOption("h", "help", false, "print help about usage and exit");
+  }
+
+  private final CommandLine line;
+  private final File workDir;
+  private final List<long[]> results = new ArrayList<long[]>();
+  private final List<String> phases = new ArrayList<String>();
+
+  private ScaleTest(CommandLine line, File workDir) {
+    this.line = line;
+    this.workDir = workDir;
+  }
+
+  /**
+   * Run java-deptools with given arguments in a new JVM and record its
+   * resource usage as given phase of given step.
+   */
+  private void run(int step, String phase, File db, String... args)
+          throws IOException, InterruptedException {
+    File dir = db.getParentFile();
+    File stats = new File(dir, phase + ".stats");
+    List<String> command = new ArrayList<String>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.addAll(Arrays.asList(line.getOptionValue("jvm-args", "-Xmx4g")
+            .trim().split("\\s+")));
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(ScaleProbe.class.getName());
+    command.add(stats.getPath());
+    command.add("-z");
+    command.add(db.getPath());
+    command.addAll(Arrays.asList(args));
+
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.redirectOutput(new File(dir, phase + ".out"));
+    pb.redirectError(new File(dir, phase + ".log"));
+    long start = System.nanoTime();
+    int status = pb.start().waitFor();
+    long wall = (System.nanoTime() - start) / 1000000;
+    if (status != 0)
+      throw new IOException(phase + " failed with status " + status
+              + ", see " + new File(dir, phase + ".log"));
+
+    BufferedReader reader = new BufferedReader(new FileReader(stats));
+    String[] usage;
+    try {
+      usage = reader.readLine().split("\t");
+    } finally {
+      reader.close();
+    }
+    results.add(new long[] { step, 0, wall, Long.parseLong(usage[0]),
+        Long.parseLong(usage[1]), db.length() });
+    phases.add(phase);
+    System.err.printf("%8d %-16s %10d ms %10d kB RSS %8d ms GC%n", step,
+            phase, wall, Long.parseLong(usage[0]), Long.parseLong(usage[1]));
+  }
+
+  /**
+   * Check that database lists given number of packages, so that a build
+   * which skipped packages fails its step instead of skewing later phases.
+   */
+  private static void check_packages(File db, int nPackages)
+          throws IOException {
+    File dir = db.getParentFile();
+    int n = 0;
+    BufferedReader reader = new BufferedReader(new FileReader(new File(dir,
+            "list.out")));
+    try {
+      while (reader.readLine() != null)
+        n++;
+    } finally {
+      reader.close();
+    }
+    if (n != nPackages)
+      throw new IOException("build indexed " + n + " packages instead of "
+              + nPackages + ", see " + new File(dir, "build.log"));
+  }
+
+  private void step(int nPackages) throws IOException, InterruptedException {
+    File dir = new File(workDir, "step-" + nPackages);
+    File inputs = new File(dir, "inputs");
+    File db = new File(dir, "db");
+    SyntheticRepository repo = GenerateRepository.repository(line, nPackages);
+    System.err.println("Generating " + nPackages + " packages...");
+    if (line.getOptionValue("inputs", "rpm").equals("jar"))
+      repo.writeJars(inputs);
+    else
+      repo.writeRpms(inputs);
+
+    String pkg = repo.packageName(nPackages / 2);
+    if (line.hasOption("memory-budget"))
+      run(nPackages, "build", db, "--build", "--memory-budget",
+              line.getOptionValue("memory-budget"), inputs.getPath());
+    else
+      run(nPackages, "build", db, "--build", inputs.getPath());
+    run(nPackages, "list", db, "--list");
+    check_packages(db, nPackages);
+    run(nPackages, "requires-all", db, "--requires", "*");
+    run(nPackages, "requires", db, "--requires", pkg);
+    run(nPackages, "what-requires", db, "--what-requires", "--alternatives",
+            pkg);
+    run(nPackages, "requires-recursive-all", db, "--requires", "--recursive",
+            "--alternatives", "*");
+    run(nPackages, "what-requires-recursive", db, "--what-requires",
+            "--recursive", "--alternatives", pkg);
+    run(nPackages, "cycles", db, "--cycles", "--alternatives");
+    run(nPackages, "what-provides", db, "--what-provides", "*.s1.C000?");
+    run(nPackages, "why", db, "--why", "*", pkg);
+  }
+
+  private void write(File f) throws IOException {
+    PrintWriter writer = new PrintWriter(f);
+    try {
+      writer.println(join(COLUMNS));
+      for (int i = 0; i < results.size(); i++) {
+        String[] row = new String[COLUMNS.length];
+        for (int k = 0; k < row.length; k++)
+          row[k] = String.valueOf(results.get(i)[k]);
+        row[1] = phases.get(i);
+        writer.println(join(row));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static String join(String[] values) {
+    StringBuilder sb = new StringBuilder();
+    for (String value : values)
+      sb.append(sb.length() > 0 ? "\t" : "").append(value);
+    return sb.toString();
+  }
+
+  /**
+   * Compare results with baseline.
+   * 
+   * @return number of regressions found
+   */
+  private int compare(File baseline, double tolerance) throws IOException {
+    Map<String, String[]> previous = new HashMap<String, String[]>();
+    BufferedReader reader = new BufferedReader(new FileReader(baseline));
+    try {
+      String row;
+      reader.readLine();
+      while ((row = reader.readLine()) != null) {
+        String[] values = row.split("\t");
+        previous.put(values[0] + "\t" + values[1], values);
+      }
+    } finally {
+      reader.close();
+    }
+
+    int nRegressions = 0;
+    for (int i = 0; i < results.size(); i++) {
+      long[] result = results.get(i);
+      String[] old = previous.get(result[0] + "\t" + phases.get(i));
+      if (old == null)
+        continue;
+      for (int k = 2; k < COLUMNS.length; k++) {
+        long value = result[k];
+        long limit = (long) (Long.parseLong(old[k]) * (1 + tolerance))
+                + SLACK[k];
+        if (Long.parseLong(old[k]) >= 0 && value > limit) {
+          System.err.println("Regression: " + result[0] + " packages, "
+                  + phases.get(i) + ": " + COLUMNS[k] + " " + value
+                  + " exceeds baseline " + old[k]);
+          nRegressions++;
+        }
+      }
+    }
+    return nRegressions;
+  }
+
+  public static void main(String[] args) throws Exception {
+    CommandLine line;
+    try {
+      line = new GnuParser().parse(options, args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+      return;
+    }
+    if (line.hasOption("help")) {
+      new HelpFormatter().printHelp("ScaleTest", options);
+      System.exit(0);
+    }
+
+    boolean temporary = !line.hasOption("work-dir");
+    File workDir = temporary ? SyntheticRepository.createTempDir("scale-test")
+            : new File(line.getOptionValue("work-dir"));
+    ScaleTest test = new ScaleTest(line, workDir);
+    try {
+      for (String step : line.getOptionValue("steps", "500,1000,2000").split(
+              ","))
+        test.step(Integer.parseInt(step.trim()));
+    } finally {
+      if (temporary)
+        SyntheticRepository.delete(workDir);
+    }
+
+    File output = new File(line.getOptionValue("output", "scale-results.tsv"));
+    test.write(output);
+    System.err.println("Results written to " + output);
+
+    if (line.hasOption("baseline")) {
+      int nRegressions = test.compare(new File(line.getOptionValue("baseline")),
+              Double.parseDouble(line.getOptionValue("tolerance", "0.25")));
+      if (nRegressions > 0) {
+        System.err.println(nRegressions + " regressions found.");
+        System.exit(1);
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of reading build inputs: scanning class files, reading jar files
+ * from memory and from disk, and reading RPM files.
+ * 
+ * @author Mikolaj Izdebski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+  @Param({ "500" })
+  public int classes;
+
+  @Param({ "16" })
+  public int fanOut;
+
+  private File dir;
+  private byte[][] classFiles;
+  private byte[] jar;
+  private File jarFile;
+  private File rpmFile;
+  private ClassScanner scanner;
+  private MappedJar mappedJar;
+  private JarCache cache;
+
+  @Setup
+  public void setup() throws IOException {
+    SyntheticRepository repo = new SyntheticRepository(1, 2, classes, fanOut,
+            0);
+    classFiles = new byte[classes][];
+    for (int c = 0; c < classes; c++)
+      classFiles[c] = repo.classFile(0, c);
+    jar = repo.jar(0);
+
+    dir = SyntheticRepository.createTempDir("scan-benchmark");
+    jarFile = new File(dir, repo.packageName(0) + ".jar");
+    SyntheticRepository.write(jarFile, jar);
+    rpmFile = new File(dir, repo.rpmName(0));
+    SyntheticRepository.write(rpmFile, repo.rpm(0));
+
+    scanner = new ClassScanner();
+    mappedJar = new MappedJar(scanner);
+    cache = new JarCache(new File(dir, "jar-cache"));
+    cache.read_jar(jar, scanner);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    cache.close();
+    SyntheticRepository.delete(dir);
+  }
+
+  /**
+   * Scan constant pools of all classes of a package.
+   */
+  @Benchmark
+  public void scanClasses(Blackhole bh) throws IOException {
+    for (byte[] classFile : classFiles)
+      bh.consume(scanner.scan(new ByteArrayInputStream(classFile)));
+  }
+
+  /**
+   * Read jar file sequentially from memory, as jars extracted from RPM
+   * payload are read.
+   */
+  @Benchmark
+  public Object readJarStream() throws IOException {
+    return FedoraPackage.read_jar(new ByteArrayInputStream(jar), scanner);
+  }
+
+  /**
+   * Read jar file from disk using its central directory.
+   */
+  @Benchmark
+  public Object readJarFile() throws IOException {
+    return mappedJar.read(jarFile);
+  }
+
+  /**
+   * Look up jar in jar cache, which is done by computing its digest.
+   */
+  @Benchmark
+  public Object readJarCached() throws IOException {
+    return cache.read_jar(jar, scanner);
+  }
+
+  /**
+   * Read RPM file: headers, decompression of cpio payload and the jar it
+   * contains.
+   */
+  @Benchmark
+  public Object readRpm() throws IOException {
+    return new FedoraPackage(rpmFile);
+  }
+}
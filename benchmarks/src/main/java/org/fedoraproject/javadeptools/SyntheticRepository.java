@@ -0,0 +1,408 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.cpio.CpioArchiveEntry;
+import org.apache.commons.compress.archivers.cpio.CpioArchiveOutputStream;
+import org.apache.commons.compress.archivers.cpio.CpioConstants;
+
+/**
+ * Generator of synthetic repositories of Java packages.
+ * <p>
+ * Package number {@code p} is named {@code synthetic-p} (zero-padded) and
+ * contains classes {@code org.synthetic.pP.sS.CN}. Each class references a
+ * fixed number of other classes, half of them from its own package and half
+ * from randomly chosen other packages, plus {@code java.lang.Object}. Some
+ * packages also bundle copies of all classes of another package, so that
+ * these classes have more than one provider.
+ * <p>
+ * Everything generated is a function of the parameters only: the same
+ * parameters always produce byte-for-byte identical class files, jars and
+ * RPM files.
+ * 
+ * @author Mikolaj Izdebski
+ */
+class SyntheticRepository {
+  private static final int SUBPACKAGES = 4;
+  private static final long TIMESTAMP = 1262304000000L;
+
+  private final long seed;
+  private final int nPackages;
+  private final int classesPerPackage;
+  private final int fanOut;
+  private final double overlap;
+
+  /**
+   * @param seed
+   *          seed of pseudo-random choices
+   * @param nPackages
+   *          number of packages
+   * @param classesPerPackage
+   *          number of classes in each package, not counting bundled ones
+   * @param fanOut
+   *          number of classes referenced by each class
+   * @param overlap
+   *          fraction of packages which bundle classes of another package
+   */
+  public SyntheticRepository(long seed, int nPackages, int classesPerPackage,
+          int fanOut, double overlap) {
+    this.seed = seed;
+    this.nPackages = nPackages;
+    this.classesPerPackage = classesPerPackage;
+    this.fanOut = fanOut;
+    this.overlap = overlap;
+  }
+
+  public int getPackageCount() {
+    return nPackages;
+  }
+
+  public int getClassesPerPackage() {
+    return classesPerPackage;
+  }
+
+  private Random random(int pkg, int cls) {
+    return new Random(seed * 0x9e3779b97f4a7c15L + (long) pkg * 1000003 + cls);
+  }
+
+  /**
+   * Get name of given package.
+   */
+  public String packageName(int pkg) {
+    return String.format("synthetic-%05d", pkg);
+  }
+
+  /**
+   * Get qualified name of given class of given package.
+   */
+  public String className(int pkg, int cls) {
+    return String.format("org.synthetic.p%05d.s%d.C%04d", pkg, cls
+            % SUBPACKAGES, cls);
+  }
+
+  /**
+   * Get number of package whose classes are bundled in given package, or -1
+   * if it bundles none.
+   */
+  public int bundledPackage(int pkg) {
+    Random random = random(pkg, -1);
+    if (pkg == 0 || random.nextDouble() >= overlap)
+      return -1;
+    return random.nextInt(pkg);
+  }
+
+  /**
+   * Get sorted names of classes referenced by given class.
+   */
+  public Set<String> references(int pkg, int cls) {
+    Random random = random(pkg, cls);
+    Set<String> refs = new TreeSet<String>();
+    for (int i = 0; i < fanOut; i++) {
+      int p = i % 2 == 0 || nPackages == 1 ? pkg : random.nextInt(nPackages);
+      int c = random.nextInt(classesPerPackage);
+      if (p != pkg || c != cls)
+        refs.add(className(p, c));
+    }
+    return refs;
+  }
+
+  private static String internal(String name) {
+    return name.replace('.', '/');
+  }
+
+  /**
+   * Generate class file of given class. Class files consist only of header,
+   * constant pool with class references, and empty class body.
+   */
+  public byte[] classFile(int pkg, int cls) throws IOException {
+    Set<String> refs = references(pkg, cls);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+    out.writeInt(0xcafebabe);
+    out.writeShort(0);
+    out.writeShort(50);
+
+    out.writeShort(5 + 2 * refs.size());
+    out.writeByte(1);
+    out.writeUTF(internal(className(pkg, cls)));
+    out.writeByte(7);
+    out.writeShort(1);
+    out.writeByte(1);
+    out.writeUTF("java/lang/Object");
+    out.writeByte(7);
+    out.writeShort(3);
+    int index = 5;
+    for (String ref : refs) {
+      out.writeByte(1);
+      out.writeUTF(internal(ref));
+      out.writeByte(7);
+      out.writeShort(index);
+      index += 2;
+    }
+
+    out.writeShort(0x21);
+    out.writeShort(2);
+    out.writeShort(4);
+    for (int i = 0; i < 4; i++)
+      out.writeShort(0);
+    out.flush();
+    return bos.toByteArray();
+  }
+
+  private void addClasses(Map<String, byte[]> classes, int pkg)
+          throws IOException {
+    for (int c = 0; c < classesPerPackage; c++)
+      classes.put(internal(className(pkg, c)) + ".class", classFile(pkg, c));
+  }
+
+  /**
+   * Generate jar file of given package, containing its own and bundled
+   * classes.
+   */
+  public byte[] jar(int pkg) throws IOException {
+    Map<String, byte[]> classes = new TreeMap<String, byte[]>();
+    addClasses(classes, pkg);
+    int bundled = bundledPackage(pkg);
+    if (bundled >= 0)
+      addClasses(classes, bundled);
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ZipOutputStream zip = new ZipOutputStream(bos);
+    for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+      ZipEntry ent = new ZipEntry(entry.getKey());
+      ent.setTime(TIMESTAMP);
+      zip.putNextEntry(ent);
+      zip.write(entry.getValue());
+      zip.closeEntry();
+    }
+    zip.close();
+    return bos.toByteArray();
+  }
+
+  /**
+   * Generate gzip-compressed cpio payload of RPM file of given package,
+   * containing its jar file.
+   */
+  public byte[] payload(int pkg) throws IOException {
+    byte[] jar = jar(pkg);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    CpioArchiveOutputStream cpio = new CpioArchiveOutputStream(
+            new GZIPOutputStream(bos), CpioConstants.FORMAT_NEW);
+    CpioArchiveEntry ent = new CpioArchiveEntry(CpioConstants.FORMAT_NEW,
+            "./usr/share/java/" + packageName(pkg) + ".jar", jar.length);
+    ent.setMode(CpioConstants.C_ISREG | 0644);
+    ent.setTime(TIMESTAMP / 1000);
+    cpio.putArchiveEntry(ent);
+    cpio.write(jar);
+    cpio.closeArchiveEntry();
+    cpio.close();
+    return bos.toByteArray();
+  }
+
+  /**
+   * Serialized RPM header structure. Tag values are strings, arrays of
+   * strings, or arrays of 32-bit ({@code int[]}) or 16-bit ({@code short[]})
+   * integers, which are aligned to their size.
+   */
+  private static byte[] header(Map<Integer, Object> tags) throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    DataOutputStream dataOut = new DataOutputStream(data);
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    DataOutputStream indexOut = new DataOutputStream(index);
+    for (Map.Entry<Integer, Object> tag : tags.entrySet()) {
+      Object value = tag.getValue();
+      int type;
+      int count;
+      int offset;
+      if (value instanceof String) {
+        type = 6;
+        count = 1;
+        offset = data.size();
+        dataOut.write(((String) value).getBytes("UTF-8"));
+        dataOut.write(0);
+      } else if (value instanceof String[]) {
+        type = 8;
+        count = ((String[]) value).length;
+        offset = data.size();
+        for (String s : (String[]) value) {
+          dataOut.write(s.getBytes("UTF-8"));
+          dataOut.write(0);
+        }
+      } else if (value instanceof int[]) {
+        type = 4;
+        count = ((int[]) value).length;
+        while (data.size() % 4 != 0)
+          dataOut.write(0);
+        offset = data.size();
+        for (int v : (int[]) value)
+          dataOut.writeInt(v);
+      } else {
+        type = 3;
+        count = ((short[]) value).length;
+        while (data.size() % 2 != 0)
+          dataOut.write(0);
+        offset = data.size();
+        for (short v : (short[]) value)
+          dataOut.writeShort(v);
+      }
+      indexOut.writeInt(tag.getKey());
+      indexOut.writeInt(type);
+      indexOut.writeInt(offset);
+      indexOut.writeInt(count);
+    }
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+    out.writeInt(0x8eade801);
+    out.writeInt(0);
+    out.writeInt(tags.size());
+    out.writeInt(data.size());
+    index.writeTo(out);
+    data.writeTo(out);
+    out.flush();
+    return bos.toByteArray();
+  }
+
+  private static String sha256(byte[] bytes) {
+    try {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+        hex.append(String.format("%02x", b & 0xff));
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Get name of RPM file of given package.
+   */
+  public String rpmName(int pkg) {
+    return packageName(pkg) + "-1.0-1.noarch.rpm";
+  }
+
+  /**
+   * Generate RPM file of given package. Main header contains only name,
+   * version, list of files (the jar file) and payload description; signature
+   * header contains only SHA-256 digest of the main header.
+   */
+  public byte[] rpm(int pkg) throws IOException {
+    Map<Integer, Object> tags = new TreeMap<Integer, Object>();
+    tags.put(1000, packageName(pkg));
+    tags.put(1001, "1.0");
+    tags.put(1002, "1");
+    tags.put(RpmHeader.RPMTAG_FILEMODES, new short[] { (short) 0100644 });
+    tags.put(RpmHeader.RPMTAG_DIRINDEXES, new int[] { 0 });
+    tags.put(RpmHeader.RPMTAG_BASENAMES,
+            new String[] { packageName(pkg) + ".jar" });
+    tags.put(RpmHeader.RPMTAG_DIRNAMES, new String[] { "/usr/share/java/" });
+    tags.put(RpmHeader.RPMTAG_PAYLOADFORMAT, "cpio");
+    tags.put(RpmHeader.RPMTAG_PAYLOADCOMPRESSOR, "gzip");
+    byte[] header = header(tags);
+
+    Map<Integer, Object> sigtags = new TreeMap<Integer, Object>();
+    sigtags.put(RpmHeader.SIGTAG_SHA256, sha256(header));
+    byte[] signature = header(sigtags);
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+    out.writeInt(0xedabeedb);
+    out.writeShort(0x0300);
+    out.writeShort(0);
+    out.writeShort(1);
+    byte[] name = new byte[66];
+    byte[] nvr = (packageName(pkg) + "-1.0-1").getBytes("UTF-8");
+    System.arraycopy(nvr, 0, name, 0, Math.min(nvr.length, name.length - 1));
+    out.write(name);
+    out.writeShort(1);
+    out.writeShort(5);
+    out.write(new byte[16]);
+    out.write(signature);
+    out.write(new byte[(8 - (signature.length & 7)) & 7]);
+    out.write(header);
+    out.write(payload(pkg));
+    out.flush();
+    return bos.toByteArray();
+  }
+
+  /**
+   * Write given bytes to given file.
+   */
+  static void write(File f, byte[] bytes) throws IOException {
+    OutputStream os = new FileOutputStream(f);
+    try {
+      os.write(bytes);
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * Write RPM files of all packages to given directory.
+   */
+  public void writeRpms(File dir) throws IOException {
+    dir.mkdirs();
+    for (int p = 0; p < nPackages; p++)
+      write(new File(dir, rpmName(p)), rpm(p));
+  }
+
+  /**
+   * Write jar files of all packages to given directory.
+   */
+  public void writeJars(File dir) throws IOException {
+    dir.mkdirs();
+    for (int p = 0; p < nPackages; p++)
+      write(new File(dir, packageName(p) + ".jar"), jar(p));
+  }
+
+  /**
+   * Create empty temporary directory.
+   */
+  static File createTempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    if (!dir.delete() || !dir.mkdir())
+      throw new IOException("unable to create temporary directory " + dir);
+    return dir;
+  }
+
+  /**
+   * Recursively delete given file or directory.
+   */
+  static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    f.delete();
+  }
+}
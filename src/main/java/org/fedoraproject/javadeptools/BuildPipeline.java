@@ -0,0 +1,451 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+
+/**
+ * Pipeline reading build inputs in parallel.
+ * <p>
+ * Reading is split into stages connected by bounded queues:
+ * <ol>
+ * <li>reader threads take input files, largest first; RPM files have their
+ * payload decompressed and jar files extracted into memory, while jar files
+ * and class directories on disk are scanned directly by the reader,</li>
+ * <li>extracted jars are scanned for classes by a work-stealing fork-join pool,
+ * each worker with its own {@link ClassScanner},</li>
+ * <li>when all jars of an input are scanned, the resulting package is queued for
+ * merging into the database, which is done by a single consumer calling
+ * {@link #take()}, so that no locking of the database is needed.</li>
+ * </ol>
+ * Jars found in {@link JarCache}, if one is given, are only hashed instead of
+ * scanned. Results are returned in order of completion.
+ *
+ * @author Mikolaj Izdebski
+ */
+class BuildPipeline {
+  private static final int JAR_QUEUE_SIZE_PER_THREAD = 4;
+  private static final int RESULT_QUEUE_SIZE_PER_THREAD = 2;
+  private static final int N_SLOWEST = 10;
+
+  private static final Metrics.Counter INPUTS_READ = Metrics.counter(
+          "build_inputs_read_total", "Input files read");
+  private static final Metrics.Counter INPUTS_REUSED = Metrics.counter(
+          "build_inputs_reused_total",
+          "Input files unchanged since previous build, which were not read");
+  private static final Metrics.Counter INPUTS_FAILED = Metrics.counter(
+          "build_inputs_failed_total", "Input files which couldn't be read");
+  private static final Metrics.Counter INPUT_BYTES = Metrics.counter(
+          "build_input_bytes_total", "Bytes of input files read");
+  private static final Metrics.Counter RPMS_WITHOUT_JARS = Metrics.counter(
+          "build_rpms_without_jars_total",
+          "RPM files whose header lists no jar files, which were skipped without decompressing payload");
+  private static final Metrics.Counter JARS = Metrics.counter(
+          "build_jars_scanned_total", "Jar files scanned");
+  private static final Metrics.Counter CLASSES = Metrics.counter(
+          "build_classes_scanned_total", "Class files scanned");
+  private static final Metrics.Timer INPUT_TIME = Metrics.timer(
+          "build_input_seconds",
+          "Time from start of reading an input until all its classes are scanned");
+  private static final Metrics.Timer PAYLOAD_TIME = Metrics.timer(
+          "build_rpm_payload_seconds",
+          "Time spent decompressing payload of a RPM file and extracting jars from it");
+  private static final Metrics.Timer JAR_SCAN_TIME = Metrics.timer(
+          "build_jar_scan_seconds",
+          "Time spent inflating and scanning classes of a jar file");
+  private static final Metrics.Timer DIRECTORY_SCAN_TIME = Metrics.timer(
+          "build_directory_scan_seconds",
+          "Time spent scanning classes of a class directory");
+  private static final Metrics.Timer JAR_SLOT_WAIT = Metrics.timer(
+          "build_jar_slot_wait_seconds",
+          "Time readers were blocked because too many extracted jars were waiting to be scanned");
+  private static final Metrics.Timer RESULT_QUEUE_WAIT = Metrics.timer(
+          "build_result_queue_wait_seconds",
+          "Time spent blocked because too many read inputs were waiting to be merged");
+  private static final Metrics.Timer MERGE_WAIT = Metrics.timer(
+          "build_merge_wait_seconds",
+          "Time merging thread was idle, waiting for next read input");
+  private static final Metrics.Slowest SLOWEST = Metrics.slowest(
+          "build_slowest_input_seconds", "Inputs which took longest to read",
+          "input", N_SLOWEST);
+
+  /**
+   * Input file to read, together with result of reading it.
+   */
+  static class Task {
+    private final int index;
+    private final File file;
+    private final String name;
+    private final Fingerprint fingerprint;
+    private final Fingerprint previous;
+
+    private final List<ScanTask> jars = new ArrayList<ScanTask>();
+    // Number of stages still working on this task: the reader plus one for
+    // each jar which is not scanned yet.
+    private final AtomicInteger pending = new AtomicInteger(1);
+    // Classes read directly by the reader.
+    private List<JavaClass> classes;
+    // Time reading started at.
+    private long start;
+
+    private boolean reused;
+    private byte[] digest;
+    private String[] requires;
+    private String[] provides;
+    private FedoraPackage pkg;
+    private Throwable error;
+
+    /**
+     * @param index
+     *          position of the file in the list of inputs
+     * @param file
+     *          the RPM file, jar file or class directory
+     * @param name
+     *          name of package contained in the input
+     * @param fingerprint
+     *          fingerprint of the file
+     * @param previous
+     *          fingerprint of the file recorded in previous version of the
+     *          database, or {@code null}
+     */
+    public Task(int index, File file, String name, Fingerprint fingerprint,
+            Fingerprint previous) {
+      this.index = index;
+      this.file = file;
+      this.name = name;
+      this.fingerprint = fingerprint;
+      this.previous = previous;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public Fingerprint getFingerprint() {
+      return fingerprint;
+    }
+
+    /**
+     * Get fingerprint recorded in previous version of the database, or
+     * {@code null}.
+     */
+    public Fingerprint getPrevious() {
+      return previous;
+    }
+
+    /**
+     * Whether the file is unchanged since previous version of the database
+     * and was not read again.
+     */
+    public boolean isReused() {
+      return reused;
+    }
+
+    public byte[] getDigest() {
+      return digest;
+    }
+
+    /**
+     * Get package read from the file, or {@code null} if it was reused or
+     * couldn't be read.
+     */
+    public FedoraPackage getPackage() {
+      return pkg;
+    }
+
+    /**
+     * Drop package read from the file, once it is merged into the database.
+     */
+    public void release() {
+      pkg = null;
+    }
+
+    /**
+     * Get exception which prevented the file from being read, or {@code null}.
+     */
+    public Throwable getError() {
+      return error;
+    }
+  }
+
+  /**
+   * Jar file extracted from RPM payload, waiting to be scanned.
+   */
+  private class ScanTask implements Runnable {
+    private final Task task;
+    private byte[] bytes;
+    private List<JavaClass> classes;
+
+    ScanTask(Task task, byte[] bytes) {
+      this.task = task;
+      this.bytes = bytes;
+    }
+
+    public void run() {
+      try {
+        long start = JAR_SCAN_TIME.start();
+        if (cache != null)
+          classes = cache.read_jar(bytes, scanner.get());
+        else
+          classes = FedoraPackage.read_jar(new ByteArrayInputStream(bytes),
+                  scanner.get());
+        JAR_SCAN_TIME.stop(start);
+        JARS.increment();
+        CLASSES.add(classes.size());
+      } catch (Throwable e) {
+        task.error = e;
+      } finally {
+        bytes = null;
+        jarSlots.release();
+        done(task);
+      }
+    }
+  }
+
+  private final List<Task> tasks;
+  private final AtomicInteger next = new AtomicInteger();
+  private final Thread[] readers;
+  private final ForkJoinPool scanners;
+  private final Semaphore jarSlots;
+  private final BlockingQueue<Task> results;
+  private final JarCache cache;
+
+  private final ThreadLocal<ClassScanner> scanner = new ThreadLocal<ClassScanner>() {
+    @Override
+    protected ClassScanner initialValue() {
+      return new ClassScanner();
+    }
+  };
+  private final ThreadLocal<MappedJar> jarReader = new ThreadLocal<MappedJar>() {
+    @Override
+    protected MappedJar initialValue() {
+      return new MappedJar(scanner.get(), cache);
+    }
+  };
+
+  /**
+   * Start reading given inputs.
+   *
+   * @param tasks
+   *          inputs to read
+   * @param nThreads
+   *          number of reader threads, and parallelism of the scanning pool
+   * @param cache
+   *          cache of classes read from jars, or {@code null}
+   */
+  public BuildPipeline(List<Task> tasks, int nThreads, JarCache cache) {
+    this.cache = cache;
+    this.tasks = new ArrayList<Task>(tasks);
+    Collections.sort(this.tasks, new Comparator<Task>() {
+      public int compare(Task t1, Task t2) {
+        long s1 = t1.fingerprint.getSize();
+        long s2 = t2.fingerprint.getSize();
+        if (s1 != s2)
+          return s1 > s2 ? -1 : 1;
+        return t1.index - t2.index;
+      }
+    });
+
+    jarSlots = new Semaphore(JAR_QUEUE_SIZE_PER_THREAD * nThreads);
+    results = new ArrayBlockingQueue<Task>(RESULT_QUEUE_SIZE_PER_THREAD
+            * nThreads);
+    scanners = new ForkJoinPool(nThreads,
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+
+    readers = new Thread[Math.min(nThreads, tasks.size())];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread("input-reader-" + i) {
+        @Override
+        public void run() {
+          int k;
+          while ((k = next.getAndIncrement()) < BuildPipeline.this.tasks
+                  .size())
+            read(BuildPipeline.this.tasks.get(k));
+        }
+      };
+      readers[i].setDaemon(true);
+      readers[i].start();
+    }
+  }
+
+  private void read(Task task) {
+    task.start = System.nanoTime();
+    try {
+      Fingerprint old = task.previous;
+      if (old != null
+              && (old.sameFile(task.fingerprint) || old.sameDigest(task.file))) {
+        task.reused = true;
+        INPUTS_REUSED.increment();
+        return;
+      }
+      INPUTS_READ.increment();
+      INPUT_BYTES.add(task.fingerprint.getSize());
+
+      if (task.file.isDirectory()) {
+        long start = DIRECTORY_SCAN_TIME.start();
+        task.classes = FedoraPackage.read_class_directory(task.file,
+                scanner.get());
+        DIRECTORY_SCAN_TIME.stop(start);
+        CLASSES.add(task.classes.size());
+        return;
+      }
+      if (task.file.getName().endsWith(".jar")) {
+        long start = JAR_SCAN_TIME.start();
+        task.classes = jarReader.get().read(task.file);
+        JAR_SCAN_TIME.stop(start);
+        JARS.increment();
+        CLASSES.add(task.classes.size());
+        return;
+      }
+
+      long start = PAYLOAD_TIME.start();
+      long waited = 0;
+      RpmArchiveInputStream rpm_is = new RpmArchiveInputStream(task.file);
+      try {
+        task.digest = rpm_is.getSignature().getHeaderDigest();
+        task.requires = FedoraPackage.declared_requires(rpm_is.getHeader());
+        task.provides = FedoraPackage.declared_provides(rpm_is.getHeader());
+        if (rpm_is.getJarCount() == 0)
+          RPMS_WITHOUT_JARS.increment();
+        ArchiveEntry rpm_ent;
+        while ((rpm_ent = rpm_is.getNextJarEntry()) != null) {
+          ScanTask jar = new ScanTask(task, read_fully(rpm_is,
+                  rpm_ent.getSize()));
+          waited += acquire_jar_slot();
+          task.jars.add(jar);
+          task.pending.incrementAndGet();
+          scanners.execute(jar);
+        }
+      } finally {
+        rpm_is.close();
+      }
+      PAYLOAD_TIME.record(System.nanoTime() - start - waited);
+    } catch (Throwable e) {
+      task.error = e;
+    } finally {
+      done(task);
+    }
+  }
+
+  /**
+   * Acquire slot for an extracted jar, waiting if there is none free.
+   *
+   * @return time spent waiting, in nanoseconds
+   */
+  private long acquire_jar_slot() {
+    if (jarSlots.tryAcquire())
+      return 0;
+    long start = JAR_SLOT_WAIT.start();
+    jarSlots.acquireUninterruptibly();
+    return JAR_SLOT_WAIT.stop(start);
+  }
+
+  private static byte[] read_fully(InputStream is, long size)
+          throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(
+            size > 0 && size < Integer.MAX_VALUE ? (int) size : 65536);
+    byte[] chunk = new byte[65536];
+    int r;
+    while ((r = is.read(chunk)) >= 0)
+      bos.write(chunk, 0, r);
+    return bos.toByteArray();
+  }
+
+  /**
+   * Called when a stage finishes working on given task. The last one to
+   * finish assembles the package and queues it for merging.
+   */
+  private void done(Task task) {
+    if (task.pending.decrementAndGet() > 0)
+      return;
+
+    if (!task.reused) {
+      long nanos = INPUT_TIME.stop(task.start);
+      SLOWEST.record(task.fingerprint.getPath(), nanos);
+      if (task.error != null)
+        INPUTS_FAILED.increment();
+    }
+    if (!task.reused && task.error == null) {
+      List<JavaClass> classes = new ArrayList<JavaClass>();
+      if (task.classes != null)
+        classes.addAll(task.classes);
+      for (ScanTask jar : task.jars)
+        classes.addAll(jar.classes);
+      task.pkg = new FedoraPackage(task.name, classes);
+      if (task.requires != null)
+        task.pkg.set_declared(task.requires, task.provides);
+    }
+    task.classes = null;
+    task.jars.clear();
+
+    if (results.offer(task))
+      return;
+    long start = RESULT_QUEUE_WAIT.start();
+    boolean interrupted = false;
+    for (;;) {
+      try {
+        results.put(task);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    RESULT_QUEUE_WAIT.stop(start);
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  /**
+   * Take next read input, waiting for it if needed. Must be called exactly
+   * once for each task.
+   */
+  public Task take() throws InterruptedException {
+    Task task = results.poll();
+    if (task == null) {
+      long start = MERGE_WAIT.start();
+      task = results.take();
+      MERGE_WAIT.stop(start);
+    }
+    return task;
+  }
+
+  /**
+   * Release threads of the pipeline. Must be called after all tasks were
+   * taken.
+   */
+  public void shutdown() {
+    scanners.shutdown();
+  }
+}
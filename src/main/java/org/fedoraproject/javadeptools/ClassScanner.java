@@ -0,0 +1,285 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A scanner which reads only class file header and constant pool, which is
+ * all that is needed to determine class name and classes it references.
+ * Module descriptors are read further, up to their Module attribute, which
+ * holds name of the module.
+ * <p>
+ * Scanner instances reuse their internal buffers between classes and therefore
+ * are not thread-safe.
+ *
+ * @author Mikolaj Izdebski
+ */
+class ClassScanner {
+  private static final int CONSTANT_Utf8 = 1;
+  private static final int CONSTANT_Integer = 3;
+  private static final int CONSTANT_Float = 4;
+  private static final int CONSTANT_Long = 5;
+  private static final int CONSTANT_Double = 6;
+  private static final int CONSTANT_Class = 7;
+  private static final int CONSTANT_String = 8;
+  private static final int CONSTANT_Fieldref = 9;
+  private static final int CONSTANT_Methodref = 10;
+  private static final int CONSTANT_InterfaceMethodref = 11;
+  private static final int CONSTANT_NameAndType = 12;
+  private static final int CONSTANT_MethodHandle = 15;
+  private static final int CONSTANT_MethodType = 16;
+  private static final int CONSTANT_Dynamic = 17;
+  private static final int CONSTANT_InvokeDynamic = 18;
+  private static final int CONSTANT_Module = 19;
+  private static final int CONSTANT_Package = 20;
+  private static final int ACC_MODULE = 0x8000;
+
+  private InputStream in;
+  private byte[] buf = new byte[8192];
+  private int pos;
+  private int lim;
+  private int count;
+
+  // Offsets of CONSTANT_Utf8 entries in the buffer, indexed by pool index.
+  private int[] utf8 = new int[256];
+  // Name indexes of CONSTANT_Class entries, indexed by pool index.
+  private int[] names = new int[256];
+  // Name indexes of CONSTANT_Module entries, indexed by pool index.
+  private int[] modules = new int[256];
+  private char[] chars = new char[256];
+
+  private void fill(int n) throws IOException {
+    if (lim - pos >= n)
+      return;
+    if (pos + n > buf.length) {
+      byte[] newBuf = new byte[Math.max(2 * buf.length, pos + n)];
+      System.arraycopy(buf, 0, newBuf, 0, lim);
+      buf = newBuf;
+    }
+    while (lim - pos < n) {
+      int r = in.read(buf, lim, buf.length - lim);
+      if (r < 0)
+        throw new EOFException("truncated class file");
+      lim += r;
+    }
+  }
+
+  private int u1() throws IOException {
+    fill(1);
+    return buf[pos++] & 0xff;
+  }
+
+  private int u2() throws IOException {
+    fill(2);
+    int v = (buf[pos] & 0xff) << 8 | (buf[pos + 1] & 0xff);
+    pos += 2;
+    return v;
+  }
+
+  private int u4() throws IOException {
+    return u2() << 16 | u2();
+  }
+
+  private void skip(int n) throws IOException {
+    fill(n);
+    pos += n;
+  }
+
+  /**
+   * Decode name of a class stored in given CONSTANT_Utf8 entry. Names are
+   * converted from internal form to binary form (slashes are replaced with
+   * dots) in the same pass as modified UTF-8 decoding.
+   *
+   * @return decoded class name or {@code null} if it denotes an array type
+   */
+  private String className(int index) throws IOException {
+    if (index <= 0 || index >= count || utf8[index] < 0)
+      throw new IOException("invalid constant pool reference");
+    int off = utf8[index];
+    int len = (buf[off] & 0xff) << 8 | (buf[off + 1] & 0xff);
+    off += 2;
+    if (len > 0 && buf[off] == '[')
+      return null;
+
+    if (chars.length < len)
+      chars = new char[len];
+    int n = 0;
+    for (int end = off + len; off < end;) {
+      int c = buf[off++] & 0xff;
+      if (c >= 0x80) {
+        if (c < 0xe0) {
+          c = (c & 0x1f) << 6 | (buf[off++] & 0x3f);
+        } else {
+          c = (c & 0x0f) << 12 | (buf[off] & 0x3f) << 6
+                  | (buf[off + 1] & 0x3f);
+          off += 2;
+        }
+      } else if (c == '/') {
+        c = '.';
+      }
+      chars[n++] = (char) c;
+    }
+    return new String(chars, 0, n);
+  }
+
+  private String moduleName(int index) throws IOException {
+    if (index <= 0 || index >= count || modules[index] == 0)
+      throw new IOException("invalid module reference");
+    return className(modules[index]);
+  }
+
+  private void skip_attributes() throws IOException {
+    for (int n = u2(); n > 0; n--) {
+      skip(2);
+      skip(u4());
+    }
+  }
+
+  /**
+   * Read the rest of module descriptor, up to name of the module in its Module
+   * attribute.
+   */
+  private JavaClass scan_module(String name, Set<String> dependencies)
+          throws IOException {
+    // super_class and interfaces
+    skip(2);
+    skip(2 * u2());
+    // fields and methods
+    for (int i = 0; i < 2; i++) {
+      for (int n = u2(); n > 0; n--) {
+        skip(6);
+        skip_attributes();
+      }
+    }
+
+    for (int n = u2(); n > 0; n--) {
+      String attribute = className(u2());
+      int length = u4();
+      if (!attribute.equals("Module")) {
+        skip(length);
+        continue;
+      }
+      return new JavaClass(name, dependencies, moduleName(u2()));
+    }
+    return new JavaClass(name, dependencies);
+  }
+
+  /**
+   * Read class definition from an input stream. Only the class file header,
+   * constant pool and this_class entry are read, unless the class is a module
+   * descriptor.
+   *
+   * @param is
+   *          the input stream to read the class file from
+   * @return the scanned class
+   * @throws IOException
+   *           if I/O exception occurs while reading from the input stream or
+   *           class file is malformed
+   */
+  public JavaClass scan(InputStream is) throws IOException {
+    in = is;
+    pos = lim = 0;
+    try {
+      fill(10);
+      if ((u2() << 16 | u2()) != 0xcafebabe)
+        throw new IOException("not a class file (bad magic)");
+      skip(4);
+
+      count = u2();
+      if (utf8.length < count) {
+        utf8 = new int[Math.max(count, 2 * utf8.length)];
+        names = new int[utf8.length];
+        modules = new int[utf8.length];
+      }
+
+      for (int i = 1; i < count; i++) {
+        utf8[i] = -1;
+        names[i] = 0;
+        modules[i] = 0;
+        int tag = u1();
+        switch (tag) {
+        case CONSTANT_Utf8:
+          utf8[i] = pos;
+          skip(u2());
+          break;
+        case CONSTANT_Class:
+          names[i] = u2();
+          break;
+        case CONSTANT_Module:
+          modules[i] = u2();
+          break;
+        case CONSTANT_String:
+        case CONSTANT_MethodType:
+        case CONSTANT_Package:
+          skip(2);
+          break;
+        case CONSTANT_MethodHandle:
+          skip(3);
+          break;
+        case CONSTANT_Integer:
+        case CONSTANT_Float:
+        case CONSTANT_Fieldref:
+        case CONSTANT_Methodref:
+        case CONSTANT_InterfaceMethodref:
+        case CONSTANT_NameAndType:
+        case CONSTANT_Dynamic:
+        case CONSTANT_InvokeDynamic:
+          skip(4);
+          break;
+        case CONSTANT_Long:
+        case CONSTANT_Double:
+          skip(8);
+          if (++i < count) {
+            utf8[i] = -1;
+            names[i] = 0;
+            modules[i] = 0;
+          }
+          break;
+        default:
+          throw new IOException("invalid constant pool tag " + tag);
+        }
+      }
+
+      int accessFlags = u2();
+      int thisClass = u2();
+      if (thisClass <= 0 || thisClass >= count || names[thisClass] == 0)
+        throw new IOException("invalid this_class reference");
+      String name = className(names[thisClass]);
+
+      Set<String> dependencies = new TreeSet<String>();
+      for (int i = 1; i < count; i++) {
+        if (names[i] == 0)
+          continue;
+        String cn = className(names[i]);
+        if (cn != null)
+          dependencies.add(cn);
+      }
+
+      if ((accessFlags & ACC_MODULE) != 0)
+        return scan_module(name, dependencies);
+      return new JavaClass(name, dependencies);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("malformed class file", e);
+    } finally {
+      in = null;
+    }
+  }
+}
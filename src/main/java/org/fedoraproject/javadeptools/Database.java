@@ -17,214 +17,924 @@ package org.fedoraproject.javadeptools;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-
-import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 class Database {
 
-  private static final int N_THREAD = Math.min(8 * Runtime.getRuntime()
-          .availableProcessors(), 64);
+  private static final int N_THREAD = Runtime.getRuntime()
+          .availableProcessors();
   private static boolean OPTIMIZE_OUT_JRE = true;
   private static boolean OPTIMIZE_SUBSETS = true;
+  // Number of packages compared with their declared requirements by one task.
+  private static final int DIFF_THRESHOLD = 16;
+  // Number of packages compared before their differences are written.
+  private static final int DIFF_CHUNK = 1024;
+  // Number of packages resolved by one task, and number of packages whose
+  // dependencies are resolved together.
+  private static final int RESOLVE_THRESHOLD = 16;
+  private static final int RESOLVE_CHUNK = 4096;
+  // Capabilities which satisfy requirements on virtual packages.
+  private static final Map<String, String[]> VIRTUAL_ALIASES =
+          new HashMap<String, String[]>();
+  static {
+    VIRTUAL_ALIASES.put("java", new String[] { "java", "java-headless",
+        "java-devel" });
+    VIRTUAL_ALIASES.put("jpackage-utils", new String[] { "jpackage-utils",
+        "javapackages-tools", "javapackages-filesystem" });
+  }
+
+  private static final Metrics.Timer BUILD_TIME = Metrics.timer(
+          "build_seconds", "Time spent building database");
+  private static final Metrics.Timer MERGE_TIME = Metrics.timer(
+          "build_merge_seconds",
+          "Time spent merging a read input into database");
+  private static final Metrics.Timer CANONICALIZE_TIME = Metrics.timer(
+          "build_canonicalize_seconds",
+          "Time spent sorting database into canonical order");
+  private static final Metrics.Timer WRITE_TIME = Metrics.timer(
+          "write_seconds", "Time spent writing database");
+  private static final Metrics.Timer LOAD_TIME = Metrics.timer(
+          "load_seconds", "Time spent loading database");
+  private static final Metrics.Timer PREPARE_TIME = Metrics.timer(
+          "prepare_seconds",
+          "Time spent preparing database for dependency resolution");
+  private static final Metrics.Timer DEPENDENTS_TIME = Metrics.timer(
+          "dependents_seconds",
+          "Time spent building reverse dependency index");
+  private static final Metrics.Counter RESOLVED = Metrics.counter(
+          "packages_resolved_total",
+          "Packages whose dependencies were resolved");
+
+  // Names of all packages and classes.
+  private SymbolTable symbols;
+  // Name (symbol id) of each package, indexed by package id.
+  private int[] packages;
+  private int nPackages;
+  // Row of contents table holding each package, or null if the row index is
+  // the same as package id.
+  private int[] rows;
+  // Package id of each package name (only while packages are being added).
+  private Map<Integer, Integer> packageIndex;
 
   // What classes each package contains?
-  private final Map<String, Set<String>> cntmap;
-  // What classes each class reference?
-  private final Map<String, Set<String>> refmap;
-
-  // What packages contain each class?
-  final Map<String, Set<String>> revmap = new TreeMap<String, Set<String>>();
-  // What packages each class depends on?
-  final Map<String, List<Set<String>>> classdep = new TreeMap<String, List<Set<String>>>();
-  // What packages each package depends on?
-  final Map<String, Set<String>> pkgdep = new TreeMap<String, Set<String>>();
-
-  static void read_directory(List<File> list, File dir) {
+  private IntTable contents;
+  // What classes each class reference? Rows of this table correspond to
+  // elements of contents table.
+  private IntTable references;
+  // What capabilities each package requires and provides, as declared in its
+  // RPM header? Rows of these tables correspond to rows of contents table,
+  // packages not read from RPM files have empty rows. (read from file on
+  // demand)
+  private IntTable declaredRequires;
+  private IntTable declaredProvides;
+
+  // What packages contain each class? (persisted in database file, or built
+  // on demand)
+  IntTable revmap;
+  // Distinct sets of alternative packages, which can satisfy a dependency.
+  RowInterner alternatives;
+  // Alternative set providing each class, plus one (zero if not resolved
+  // yet).
+  private int[] provider;
+  // What packages each package depends on? (sorted ids of alternative sets,
+  // resolved on demand)
+  private int[][] requires;
+  // What packages require each package? (persisted in database file, or built
+  // on demand)
+  IntTable dependents;
+  // What packages can use each package as one of alternatives satisfying a
+  // dependency? (persisted in database file, or built on demand)
+  IntTable altDependents;
+  // Graph of packages in which each package points to packages requiring it,
+  // following only hard or also alternative dependencies (built on demand).
+  private PackageGraph hardDependentsGraph;
+  private PackageGraph dependentsGraph;
+  // Names of virtual packages (like unresolved dependencies), which are given
+  // ids following real package ids.
+  private final List<String> virtuals = new ArrayList<String>();
+  private final Map<String, Integer> virtualIndex = new HashMap<String, Integer>();
+
+  // Database file the database was read from, if any.
+  private final DatabaseFile file;
+  // Whether the database indexes Java packages and JPMS modules instead of
+  // classes, see FedoraPackage#coarsen().
+  private final boolean coarse;
+  // Fingerprints of input files the database was built from.
+  private final List<Fingerprint> inputs = new ArrayList<Fingerprint>();
+  // Paths of input files whose package was superseded by a package with the
+  // same name read from another input file.
+  private final Set<String> shadowedInputs = new HashSet<String>();
+  private int nReused;
+  // Ids of symbols copied from previous version of the database.
+  private int[] previousSymbols;
+  // Whether packages were added since the database was read from file, so
+  // that tables stored in the file are out of date.
+  private boolean modified;
+  // Whether execution of a query was announced.
+  private boolean executing;
+  // Disk storage of packages read so far, if database is built with bounded
+  // memory.
+  private PackageSpill spill;
+
+  /**
+   * Collect build inputs found in given directory: RPM files, jar files and
+   * exploded class directories. A class directory is the topmost directory
+   * which contains class files, but no RPM or jar files.
+   * 
+   * @return {@code true} if the directory contains class files and no other
+   *         inputs
+   */
+  static boolean read_directory(List<File> list, File dir) {
     if (!dir.isDirectory()) {
-      if (dir.getName().endsWith(".rpm"))
+      String fn = dir.getName();
+      if (fn.endsWith(".rpm") || fn.endsWith(".jar"))
         list.add(dir);
-      else
-        System.err.println("Skipping file " + dir + ": not a RPM file");
-      return;
+      else if (!fn.endsWith(".class"))
+        System.err.println("Skipping file " + dir
+                + ": not a RPM file, jar file or class directory");
+      return false;
     }
 
     String[] subdirs = dir.list();
     if (subdirs == null) {
       System.err.println("Skipping directory " + dir + ": I/O exception");
-      return;
+      return false;
     }
-    for (String child : subdirs)
-      read_directory(list, new File(dir, child));
+    Arrays.sort(subdirs);
+
+    List<File> inputs = new ArrayList<File>();
+    List<File> class_dirs = new ArrayList<File>();
+    boolean classes = false;
+    for (String child : subdirs) {
+      File f = new File(dir, child);
+      if (f.isDirectory()) {
+        if (read_directory(inputs, f))
+          class_dirs.add(f);
+      } else if (child.endsWith(".class")) {
+        classes = true;
+      } else if (child.endsWith(".rpm") || child.endsWith(".jar")) {
+        inputs.add(f);
+      }
+    }
+
+    if (inputs.isEmpty() && (classes || !class_dirs.isEmpty()))
+      return true;
+    list.addAll(inputs);
+    list.addAll(class_dirs);
+    if (classes)
+      System.err.println("Skipping class files in " + dir
+              + ": directory also contains RPM or jar files");
+    return false;
   }
 
-  private void addRpm(File rpm) {
-    try {
-      FedoraPackage pkg = new FedoraPackage(rpm);
-      if (pkg.isJavaPackage())
-        addPkg(pkg);
-      else
+  private static String relative_path(File dir, File rpm) {
+    String prefix = dir.getPath() + File.separator;
+    String path = rpm.getPath();
+    if (path.startsWith(prefix))
+      return path.substring(prefix.length());
+    return rpm.getName();
+  }
+
+  /**
+   * Merge result of reading RPM file into the database.
+   * 
+   * @param owners
+   *          index of input file each package was read from, used to resolve
+   *          duplicate package names independently of reading order
+   */
+  private void addRpm(BuildPipeline.Task task, Database previous,
+          Map<String, Integer> owners) throws IOException {
+    Fingerprint fp = task.getFingerprint();
+    if (task.getError() != null) {
+      System.err.println("Failed to process " + task.getFile() + ": "
+              + task.getError());
+      return;
+    }
+
+    String name;
+    if (task.isReused()) {
+      Fingerprint old = task.getPrevious();
+      fp.setDigest(old.getDigest());
+      name = old.getPackageName();
+      nReused++;
+    } else {
+      FedoraPackage pkg = task.getPackage();
+      fp.setDigest(task.getDigest());
+      name = pkg.isJavaPackage() ? pkg.getName() : null;
+      if (name == null)
         System.err.println("Skipping package " + pkg.getName()
                 + ": Not a Java package");
-    } catch (IOException e) {
-      System.err.println("Failed to sprocess RPM file " + rpm + ": " + e);
-    } catch (InterruptedException e) {
-      System.err.println("Failed to sprocess RPM file " + rpm + ": " + e);
     }
+    fp.setPackageName(name);
+    inputs.add(fp);
+    if (name == null)
+      return;
+
+    Integer owner = owners.get(name);
+    if (owner != null && owner > task.getIndex())
+      return;
+    owners.put(name, task.getIndex());
+    if (spill != null && task.isReused())
+      spillPkg(previous, name, task.getIndex());
+    else if (spill != null)
+      spillPkg(task.getPackage(), task.getIndex());
+    else if (task.isReused())
+      copyPkg(previous, name);
+    else
+      addPkg(task.getPackage());
   }
 
-  private void addPkg(FedoraPackage pkg) {
-    final String pn = pkg.getName();
+  /**
+   * Store package read from given input file on disk.
+   */
+  private void spillPkg(FedoraPackage pkg, int index) throws IOException {
+    if (coarse)
+      pkg.coarsen();
+    List<String> classes = new ArrayList<String>();
+    List<Set<String>> refs = new ArrayList<Set<String>>();
+    for (JavaClass clazz : pkg.getClasses()) {
+      classes.add(clazz.getName());
+      refs.add(clazz.getDependencies());
+    }
+    spill.add(pkg.getName(), index, classes, refs,
+            names(pkg.getDeclaredRequires()), names(pkg.getDeclaredProvides()));
+  }
+
+  /**
+   * Store package with given name copied from previous version of the
+   * database on disk.
+   */
+  private void spillPkg(Database previous, String name, int index)
+          throws IOException {
+    int pn = previous.packageId(name);
+    if (pn < 0)
+      return;
+    IntTable old_contents = previous.contents;
+    IntTable old_references = previous.references();
+    List<String> classes = new ArrayList<String>();
+    List<List<String>> refs = new ArrayList<List<String>>();
+    for (int k = old_contents.start(pn); k < old_contents.end(pn); k++) {
+      classes.add(previous.symbols.get(old_contents.get(k)));
+      List<String> list = new ArrayList<String>();
+      for (int q = old_references.start(k); q < old_references.end(k); q++)
+        list.add(previous.symbols.get(old_references.get(q)));
+      refs.add(list);
+    }
+    previous.load_declared();
+    spill.add(name, index, classes, refs,
+            previous.names(previous.declaredRequires, pn),
+            previous.names(previous.declaredProvides, pn));
+  }
+
+  private static List<String> names(String[] names) {
+    if (names == null)
+      return Collections.emptyList();
+    return Arrays.asList(names);
+  }
+
+  private List<String> names(IntTable table, int row) {
+    List<String> names = new ArrayList<String>();
+    for (int i = table.start(row); i < table.end(row); i++)
+      names.add(symbols.get(table.get(i)));
+    return names;
+  }
 
-    final Set<String> cnt = new TreeSet<String>();
+  /**
+   * Read packages stored on disk into tables, which are written to
+   * memory-mapped temporary files. As packages are merged in order of their
+   * names, the database is canonical.
+   */
+  private void unspill() throws IOException {
+    System.err.println("Merging packages spilled to disk...");
+    symbols = new SymbolTable(new FrontCodedDictionary(ByteBuffer.wrap(spill
+            .merge_names())));
+    PackageSpill.TableWriter contents_writer = spill.new TableWriter();
+    PackageSpill.TableWriter references_writer = spill.new TableWriter();
+    PackageSpill.TableWriter requires_writer = spill.new TableWriter();
+    PackageSpill.TableWriter provides_writer = spill.new TableWriter();
+    IntList pkgs = new IntList();
+    IntList list = new IntList();
+    PackageSpill.Merger merger = spill.merge();
+    try {
+      PackageSpill.Package pkg;
+      while ((pkg = merger.next()) != null) {
+        pkgs.add(symbols.lookup(pkg.getName()));
+        list.clear();
+        for (String cn : pkg.getClasses())
+          list.add(symbols.lookup(cn));
+        contents_writer.add(list);
+        for (String[] refs : pkg.getReferences()) {
+          list.clear();
+          for (String ref : refs)
+            list.add(symbols.lookup(ref));
+          list.sortUnique();
+          references_writer.add(list);
+        }
+        requires_writer.add(lookup_all(pkg.getRequires(), list));
+        provides_writer.add(lookup_all(pkg.getProvides(), list));
+      }
+    } finally {
+      merger.close();
+    }
+    packages = pkgs.toArray();
+    nPackages = packages.length;
+    contents = contents_writer.finish();
+    references = references_writer.finish();
+    declaredRequires = requires_writer.finish();
+    declaredProvides = provides_writer.finish();
+  }
+
+  /**
+   * Fill given list with sorted ids of given names.
+   */
+  private IntList lookup_all(String[] names, IntList list) {
+    list.clear();
+    for (String name : names)
+      list.add(symbols.lookup(name));
+    list.sortUnique();
+    return list;
+  }
+
+  /**
+   * Copy package with given name from previous version of the database.
+   */
+  private void copyPkg(Database previous, String name) {
+    int pn = previous.packageId(name);
+    if (pn < 0)
+      return;
+    if (previousSymbols == null) {
+      previousSymbols = new int[previous.symbols.size()];
+      Arrays.fill(previousSymbols, -1);
+    }
+
+    revmap = null;
+    requires = null;
+    dependents = null;
+    altDependents = null;
+    hardDependentsGraph = null;
+    dependentsGraph = null;
+    IntList list = new IntList();
+    IntTable old_contents = previous.contents;
+    IntTable old_references = previous.references();
+    for (int k = old_contents.start(pn); k < old_contents.end(pn); k++)
+      list.add(copySymbol(previous, old_contents.get(k)));
+    int row = contents.add(list);
+
+    for (int k = old_contents.start(pn); k < old_contents.end(pn); k++) {
+      list.clear();
+      for (int q = old_references.start(k); q < old_references.end(k); q++)
+        list.add(copySymbol(previous, old_references.get(q)));
+      references.add(list);
+    }
+
+    previous.load_declared();
+    copy_row(previous, previous.declaredRequires, pn, declaredRequires, list);
+    copy_row(previous, previous.declaredProvides, pn, declaredProvides, list);
+    addPkgRow(symbols.intern(name), row);
+  }
+
+  private void copy_row(Database previous, IntTable from, int row,
+          IntTable to, IntList list) {
+    list.clear();
+    for (int i = from.start(row); i < from.end(row); i++)
+      list.add(copySymbol(previous, from.get(i)));
+    list.sortUnique();
+    to.add(list);
+  }
+
+  private int copySymbol(Database previous, int id) {
+    if (previousSymbols[id] < 0)
+      previousSymbols[id] = symbols.intern(previous.symbols.get(id));
+    return previousSymbols[id];
+  }
+
+  private void addPkg(FedoraPackage pkg) {
+    if (coarse)
+      pkg.coarsen();
+    references();
+    load_declared();
+    modified = true;
+    revmap = null;
+    requires = null;
+    dependents = null;
+    altDependents = null;
+    hardDependentsGraph = null;
+    dependentsGraph = null;
+    IntList list = new IntList();
     for (JavaClass clazz : pkg.getClasses())
-      cnt.add(clazz.getName());
+      list.add(symbols.intern(clazz.getName()));
+    int row = contents.add(list);
 
-    final Map<String, Set<String>> ref = new TreeMap<String, Set<String>>();
     for (JavaClass clazz : pkg.getClasses()) {
-      String cn = clazz.getName();
-      Set<String> refs = new TreeSet<String>();
-      refs.addAll(clazz.getDependencies());
-      ref.put(pn + "@" + cn, refs);
+      list.clear();
+      for (String dep : clazz.getDependencies())
+        list.add(symbols.intern(dep));
+      references.add(list);
     }
 
-    synchronized (refmap) {
-      cntmap.put(pn, cnt);
-      refmap.putAll(ref);
+    intern_row(pkg.getDeclaredRequires(), declaredRequires, list);
+    intern_row(pkg.getDeclaredProvides(), declaredProvides, list);
+    addPkgRow(symbols.intern(pkg.getName()), row);
+  }
+
+  private void intern_row(String[] names, IntTable to, IntList list) {
+    list.clear();
+    if (names != null)
+      for (String name : names)
+        list.add(symbols.intern(name));
+    list.sortUnique();
+    to.add(list);
+  }
+
+  /**
+   * Register package stored in given row of contents table, replacing any
+   * previous package with the same name.
+   */
+  private void addPkgRow(int pn, int row) {
+    if (rows == null) {
+      rows = new int[packages.length];
+      for (int i = 0; i < nPackages; i++)
+        rows[i] = i;
+    }
+    if (packageIndex == null) {
+      packageIndex = new HashMap<Integer, Integer>();
+      for (int i = 0; i < nPackages; i++)
+        packageIndex.put(packages[i], i);
     }
+
+    Integer id = packageIndex.get(pn);
+    if (id != null) {
+      rows[id] = row;
+      return;
+    }
+    if (nPackages == packages.length) {
+      packages = Arrays.copyOf(packages, Math.max(16, 2 * nPackages));
+      rows = Arrays.copyOf(rows, packages.length);
+    }
+    packages[nPackages] = pn;
+    rows[nPackages] = row;
+    packageIndex.put(pn, nPackages++);
   }
 
-  public Database(File dir, int foo) {
-    cntmap = new TreeMap<String, Set<String>>();
-    refmap = new TreeMap<String, Set<String>>();
+  /**
+   * Append given row of a table to another table, remapping symbol ids.
+   */
+  private static void remap_row(int[] remap, IntTable from, int row,
+          IntTable to, IntList list) {
+    list.clear();
+    for (int i = from.start(row); i < from.end(row); i++)
+      list.add(remap(remap, from.get(i)));
+    list.sortUnique();
+    to.add(list);
+  }
+
+  /**
+   * Bring the database to its canonical form, in which symbol ids, package ids
+   * and rows of all tables are ordered the same way as names they represent.
+   * Queries rely on this ordering, which is also the order of their output.
+   */
+  private void canonicalize() {
+    int[] remap = symbols.sort();
+    if (remap == null && rows == null)
+      return;
+
+    long[] order = new long[nPackages];
+    for (int p = 0; p < nPackages; p++)
+      order[p] = (long) remap(remap, packages[p]) << 32 | p;
+    Arrays.sort(order);
+
+    IntTable newContents = new IntTable(nPackages, contents.length());
+    IntTable newReferences = new IntTable(contents.length(),
+            references.length());
+    IntTable newRequires = new IntTable(nPackages, declaredRequires.length());
+    IntTable newProvides = new IntTable(nPackages, declaredProvides.length());
+    IntList list = new IntList();
+    long[] entries = new long[16];
+
+    for (int i = 0; i < nPackages; i++) {
+      int p = (int) order[i];
+      packages[i] = (int) (order[i] >>> 32);
+      int row = rows == null ? p : rows[p];
+
+      remap_row(remap, declaredRequires, row, newRequires, list);
+      remap_row(remap, declaredProvides, row, newProvides, list);
+
+      int start = contents.start(row);
+      int n = contents.length(row);
+      if (entries.length < n)
+        entries = new long[n];
+      for (int j = 0; j < n; j++)
+        entries[j] = (long) remap(remap, contents.get(start + j)) << 32
+                | (start + j);
+      Arrays.sort(entries, 0, n);
+
+      list.clear();
+      for (int j = 0; j < n; j++)
+        list.add((int) (entries[j] >>> 32));
+      newContents.add(list);
+
+      for (int j = 0; j < n; j++) {
+        int k = (int) entries[j];
+        list.clear();
+        for (int q = references.start(k); q < references.end(k); q++)
+          list.add(remap(remap, references.get(q)));
+        list.sortUnique();
+        newReferences.add(list);
+      }
+    }
+
+    newContents.trim();
+    newReferences.trim();
+    newRequires.trim();
+    newProvides.trim();
+    contents = newContents;
+    references = newReferences;
+    declaredRequires = newRequires;
+    declaredProvides = newProvides;
+    packages = Arrays.copyOf(packages, nPackages);
+    rows = null;
+    packageIndex = null;
+    revmap = null;
+    requires = null;
+    dependents = null;
+    altDependents = null;
+    hardDependentsGraph = null;
+    dependentsGraph = null;
+  }
+
+  private static int remap(int[] remap, int id) {
+    return remap != null ? remap[id] : id;
+  }
+
+  /**
+   * Build database from RPM files, jar files and class directories found in
+   * given directory, which can also be a local Maven repository.
+   * 
+   * @param dir
+   *          the directory to read inputs from
+   * @param previous
+   *          previous version of the database, whose contents are reused for
+   *          inputs which didn't change since it was built, or
+   *          {@code null}
+   * @throws IOException
+   *           if I/O exception occurs when reading previous database
+   */
+  public Database(final File dir, final Database previous) throws IOException {
+    this(dir, previous, null, 0, null, false);
+  }
+
+  /**
+   * Build database from RPM files, jar files and class directories found in
+   * given directory, optionally keeping packages which were read on disk
+   * instead of in memory and looking up jars in a cache.
+   * 
+   * @param spillDir
+   *          directory to store packages in, or {@code null} to keep them in
+   *          memory
+   * @param budget
+   *          number of bytes of heap which packages may take before they are
+   *          written to disk
+   * @param cache
+   *          cache of classes read from jars, or {@code null}
+   * @param coarse
+   *          whether to index Java packages and JPMS modules instead of
+   *          classes, which makes the database much smaller; previous
+   *          database is reused only if it was built with the same setting
+   * @see #Database(File, Database)
+   */
+  public Database(final File dir, final Database previous, File spillDir,
+          long budget, JarCache cache, boolean coarse) throws IOException {
+    file = null;
+    this.coarse = coarse;
+    symbols = new SymbolTable();
+    packages = new int[16];
+    contents = new IntTable();
+    references = new IntTable();
+    declaredRequires = new IntTable();
+    declaredProvides = new IntTable();
+    long start = BUILD_TIME.start();
 
     System.err.println("Reading directory contents...");
     final List<File> rpm_list = new ArrayList<File>();
-    read_directory(rpm_list, dir);
+    if (read_directory(rpm_list, dir))
+      rpm_list.add(dir);
     if (rpm_list.isEmpty()) {
-      System.err.println("No RPM files were found");
+      System.err.println("No RPM files, jar files or class directories were found");
       return;
     }
-    System.err.println(rpm_list.size() + " RPM files found.");
+    System.err.println(rpm_list.size() + " input files found.");
     Collections.sort(rpm_list);
 
     final int max = rpm_list.size();
+    final Map<String, Fingerprint> previous_inputs = previous != null
+            && previous.coarse == coarse ? previous.read_inputs()
+            : Collections.<String, Fingerprint> emptyMap();
 
-    final List<FedoraPackage> pkg_list = new ArrayList<FedoraPackage>();
-
-    Thread[] threads = new Thread[N_THREAD];
-    for (int i = 0; i < N_THREAD; i++) {
-      threads[i] = new Thread() {
-        public void run() {
-          List<FedoraPackage> my_pkg_list = new ArrayList<FedoraPackage>();
-          for (;;) {
-            File rpm;
-            synchronized (rpm_list) {
-              int left = rpm_list.size();
-              if (left == 0) {
-                pkg_list.addAll(my_pkg_list);
-                return;
-              }
-              rpm = rpm_list.remove(0);
-              System.err.println("Processing " + (max - left + 1) + "/" + max
-                      + ": " + rpm);
-            }
-
-            addRpm(rpm);
-          }
-        }
-      };
+    List<BuildPipeline.Task> tasks = new ArrayList<BuildPipeline.Task>(max);
+    for (File rpm : rpm_list) {
+      Fingerprint fp = new Fingerprint(rpm, relative_path(dir, rpm));
+      String name = FedoraPackage.input_name(dir, rpm, fp.getPath());
+      tasks.add(new BuildPipeline.Task(tasks.size(), rpm, name, fp,
+              previous_inputs.get(fp.getPath())));
     }
 
+    BuildPipeline pipeline = new BuildPipeline(tasks, N_THREAD, cache);
+    Map<String, Integer> owners = new HashMap<String, Integer>();
+    if (spillDir != null)
+      spill = new PackageSpill(spillDir, budget);
     try {
-      for (Thread t : threads)
-        t.start();
-      for (Thread t : threads)
-        t.join();
-    } catch (InterruptedException e) {
-      e.printStackTrace();
+      try {
+        for (int i = 1; i <= max; i++) {
+          BuildPipeline.Task task = pipeline.take();
+          System.err.println("Processing " + i + "/" + max + ": "
+                  + task.getFile());
+          long merge = MERGE_TIME.start();
+          addRpm(task, previous, owners);
+          task.release();
+          MERGE_TIME.stop(merge);
+        }
+      } catch (InterruptedException e) {
+        throw new IOException("interrupted while reading RPM files", e);
+      } finally {
+        pipeline.shutdown();
+      }
+      for (BuildPipeline.Task task : tasks) {
+        String name = task.getFingerprint().getPackageName();
+        if (name != null && owners.get(name) != task.getIndex())
+          shadowedInputs.add(task.getFingerprint().getPath());
+      }
+      if (spill != null)
+        unspill();
+    } finally {
+      if (spill != null) {
+        spill.close();
+        spill = null;
+      }
     }
 
+    long canonicalize = CANONICALIZE_TIME.start();
+    canonicalize();
+    CANONICALIZE_TIME.stop(canonicalize);
+    BUILD_TIME.stop(start);
+
     System.err.printf("\u250c\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2510%n");
-    System.err.printf("\u2502 Total RPMs processed : %5d \u2502%n", max);
-    System.err.printf("\u2502 Java packages found  : %5d \u2502%n", cntmap.size());
+    System.err.printf("\u2502 Total inputs read    : %5d \u2502%n", max);
+    System.err.printf("\u2502 Java packages found  : %5d \u2502%n", nPackages);
     System.err
-            .printf("\u2502 Skipped packages     : %5d \u2502%n", max - cntmap.size());
+            .printf("\u2502 Skipped packages     : %5d \u2502%n", max - nPackages);
+    if (previous != null)
+      System.err.printf("\u2502 Unchanged inputs     : %5d \u2502%n", nReused);
     System.err.printf("\u2514\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2518%n");
   }
 
-  static void optimize_JRE(List<Set<String>> deps) {
+  /**
+   * Get id of package with given name.
+   * 
+   * @return package id or -1 if there is no such package
+   */
+  private int packageId(String name) {
+    int sym = symbols.lookup(name);
+    if (sym < 0)
+      return -1;
+    int id = Arrays.binarySearch(packages, 0, nPackages, sym);
+    return id >= 0 ? id : -1;
+  }
+
+  /**
+   * Get id of package with given name, which is assigned a virtual package id
+   * if there is no real package with such name.
+   */
+  private int virtualPackageId(String name) {
+    int id = packageId(name);
+    if (id >= 0)
+      return id;
+    Integer vid = virtualIndex.get(name);
+    if (vid == null) {
+      vid = nPackages + virtuals.size();
+      virtuals.add(name);
+      virtualIndex.put(name, vid);
+    }
+    return vid;
+  }
+
+  private String packageName(int id) {
+    if (id < nPackages)
+      return symbols.get(packages[id]);
+    return virtuals.get(id - nPackages);
+  }
+
+  private int singleton(int id) {
+    return alternatives.intern(new int[] { id }, 0, 1);
+  }
+
+  void optimize_JRE(IntList deps) {
     if (!OPTIMIZE_OUT_JRE)
       return;
 
+    IntTable sets = alternatives.table();
+    int jre = packageId("java-1.7.0-openjdk");
+    int jdk = packageId("java-1.7.0-openjdk-devel");
     boolean needs_devel = false;
 
     for (int i = 0; i < deps.size(); i++) {
-      if (deps.get(i).contains("java-1.7.0-openjdk"))
+      if (jre >= 0 && sets.contains(deps.get(i), jre))
         deps.remove(i--);
-      else if (deps.get(i).contains("java-1.7.0-openjdk-devel")) {
+      else if (jdk >= 0 && sets.contains(deps.get(i), jdk)) {
         deps.remove(i--);
         needs_devel = true;
       }
     }
 
     if (needs_devel)
-      deps.add(Collections.singleton("java-devel"));
+      deps.add(singleton(virtualPackageId("java-devel")));
     else
-      deps.add(Collections.singleton("java"));
-    deps.add(Collections.singleton("jpackage-utils"));
+      deps.add(singleton(virtualPackageId("java")));
+    deps.add(singleton(virtualPackageId("jpackage-utils")));
   }
 
-  static void optimize_subsets(List<Set<String>> deps) {
-    if (!OPTIMIZE_SUBSETS)
+  /**
+   * Remove sets of alternatives which are subsets of other required sets.
+   * <p>
+   * Sets are visited in order of decreasing cardinality, so that each set can
+   * be contained only in sets which were already kept. For each package a
+   * bitset of kept sets containing it is maintained; a set is redundant if
+   * intersection of bitsets of all its members is not empty.
+   */
+  void optimize_subsets(IntList deps) {
+    if (!OPTIMIZE_SUBSETS || deps.size() < 2)
       return;
-    // Naive and slow, but who cares?
-    again: for (;;) {
-      for (Set<String> d1 : deps)
-        for (Set<String> d2 : deps)
-          if (d1 != d2 && d1.containsAll(d2)) {
-            deps.remove(d2);
-            continue again;
-          }
-      break;
+    IntTable sets = alternatives.table();
+
+    int n = deps.size();
+    long[] order = new long[n];
+    for (int i = 0; i < n; i++)
+      order[i] = (long) -sets.length(deps.get(i)) << 32 | deps.get(i);
+    Arrays.sort(order);
+
+    Map<Integer, BitSet> containing = new HashMap<Integer, BitSet>();
+    BitSet candidates = new BitSet();
+    deps.clear();
+    for (int i = 0; i < n; i++) {
+      int set = (int) order[i];
+      candidates.clear();
+      for (int k = sets.start(set); k < sets.end(set); k++) {
+        BitSet bits = containing.get(sets.get(k));
+        if (bits == null) {
+          candidates.clear();
+          break;
+        }
+        if (k == sets.start(set))
+          candidates.or(bits);
+        else
+          candidates.and(bits);
+        if (candidates.isEmpty())
+          break;
+      }
+      if (!candidates.isEmpty())
+        continue;
+
+      for (int k = sets.start(set); k < sets.end(set); k++) {
+        BitSet bits = containing.get(sets.get(k));
+        if (bits == null)
+          containing.put(sets.get(k), bits = new BitSet());
+        bits.set(deps.size());
+      }
+      deps.add(set);
     }
   }
 
   /**
-   * Read database from given input stream
+   * Read database from given file
    * 
-   * @param is
-   *          the input stream to read database from
+   * @param f
+   *          the file to read database from
    * @throws IOException
    *           if I/O exception occurs when reading the database
+   * @see DatabaseFile
    */
-  @SuppressWarnings("unchecked")
   public Database(File f) throws IOException {
     System.err.print("Reading database...");
-    try {
-      InputStream is = new ProgressFileInputStream(f);
-      InputStream zis = new XZCompressorInputStream(is);
-      ObjectInputStream ois = new ObjectInputStream(zis);
-      cntmap = (Map<String, Set<String>>) ois.readObject();
-      refmap = (Map<String, Set<String>>) ois.readObject();
-      ois.close();
-    } catch (ClassNotFoundException e) {
+    long start = LOAD_TIME.start();
+    file = DatabaseFile.open(f);
+    file.prefetch(DatabaseFile.SYMBOLS, DatabaseFile.PACKAGES,
+            DatabaseFile.CONTENTS_OFFSETS, DatabaseFile.CONTENTS);
+    symbols = new SymbolTable(new FrontCodedDictionary(
+            file.section(DatabaseFile.SYMBOLS)));
+    IntBuffer pkgs = file.intSection(DatabaseFile.PACKAGES);
+    nPackages = pkgs.remaining();
+    packages = new int[nPackages];
+    pkgs.get(packages);
+    coarse = file.hasSection(DatabaseFile.GRANULARITY)
+            && file.intSection(DatabaseFile.GRANULARITY).get(0)
+                    == DatabaseFile.GRANULARITY_JAVA_PACKAGES;
+    contents = new IntTable(file.intSection(DatabaseFile.CONTENTS_OFFSETS),
+            file.intSection(DatabaseFile.CONTENTS));
+    // Other tables are read only when needed, but their sizes are checked
+    // now.
+    if (contents.size() != nPackages
+            || rows(DatabaseFile.REFERENCES_OFFSETS) != contents.length()
+            || rows(DatabaseFile.PROVIDERS_OFFSETS) != symbols.size())
+      throw new IOException("invalid database format");
+    if (file.hasSection(DatabaseFile.DEPENDENTS)
+            && (rows(DatabaseFile.DEPENDENTS_OFFSETS) != nPackages
+                    || rows(DatabaseFile.ALT_DEPENDENTS_OFFSETS) != nPackages))
+      throw new IOException("invalid database format");
+    if (file.hasSection(DatabaseFile.DECLARED_REQUIRES)
+            && (rows(DatabaseFile.DECLARED_REQUIRES_OFFSETS) != nPackages
+                    || rows(DatabaseFile.DECLARED_PROVIDES_OFFSETS) != nPackages))
       throw new IOException("invalid database format");
+    LOAD_TIME.stop(start);
+
+    System.err.println("Number of indexed packages : " + nPackages);
+    if (coarse)
+      System.err.println("Number of Java packages    : " + contents.length());
+    else
+      System.err.println("Number of indexed classes  : " + contents.length());
+  }
+
+  /**
+   * Get number of rows of table stored in database file, given id of section
+   * holding its row offsets.
+   */
+  private long rows(int offsets) throws IOException {
+    return file.length(offsets) / 4 - 1;
+  }
+
+  /**
+   * Read table stored in database file.
+   */
+  private IntTable read_table(int offsets, int data) {
+    try {
+      file.prefetch(offsets, data);
+      return new IntTable(file.intSection(offsets), file.intSection(data));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
+  }
 
-    System.err.println("Number of indexed packages : " + cntmap.size());
-    System.err.println("Number of indexed classes  : " + refmap.size());
+  /**
+   * Get references of classes, reading them from database file if needed.
+   */
+  private synchronized IntTable references() {
+    if (references == null) {
+      references = read_table(DatabaseFile.REFERENCES_OFFSETS,
+              DatabaseFile.REFERENCES);
+    }
+    return references;
+  }
+
+  /**
+   * Make sure that declared capabilities of packages are known. Databases
+   * written by older versions don't record them, in which case no package
+   * has any.
+   */
+  private synchronized void load_declared() {
+    if (declaredRequires != null)
+      return;
+    if (file.hasSection(DatabaseFile.DECLARED_REQUIRES)) {
+      declaredRequires = read_table(DatabaseFile.DECLARED_REQUIRES_OFFSETS,
+              DatabaseFile.DECLARED_REQUIRES);
+      declaredProvides = read_table(DatabaseFile.DECLARED_PROVIDES_OFFSETS,
+              DatabaseFile.DECLARED_PROVIDES);
+    } else {
+      declaredRequires = IntTable.withLengths(new int[nPackages], nPackages);
+      declaredProvides = IntTable.withLengths(new int[nPackages], nPackages);
+    }
+  }
+
+  /**
+   * Make sure that providers of classes are known. They are read from
+   * database file, unless packages were added since it was read, in which
+   * case they are computed.
+   */
+  private synchronized void load_revmap() {
+    if (revmap != null)
+      return;
+    if (file != null && !modified) {
+      revmap = read_table(DatabaseFile.PROVIDERS_OFFSETS,
+              DatabaseFile.PROVIDERS);
+    } else {
+      revmap = contents.invert(symbols.size());
+    }
   }
 
   /**
@@ -232,208 +942,929 @@ class Database {
    * 
    * @param os
    *          the output stream to write database to
+   * @param compress
+   *          whether to compress database sections, see {@link DatabaseFile}
    * @throws IOException
-   * @throws FileNotFoundException
-   * @throws UnsupportedOptionsException
+   *           if I/O exception occurs when writing the database
+   * @see DatabaseFile
    */
-  public void write(OutputStream os) throws IOException {
+  public void write(OutputStream os, boolean compress) throws IOException {
     System.err.println("Writing database...");
-    OutputStream zos = new XZCompressorOutputStream(os);
-    ObjectOutputStream oos = new ObjectOutputStream(zos);
-    oos.writeObject(cntmap);
-    oos.writeObject(refmap);
-    oos.close();
+    long start = WRITE_TIME.start();
+    load_revmap();
+    build_dependents();
+
+    DatabaseFile.Writer writer = new DatabaseFile.Writer(compress);
+    writer.add(DatabaseFile.SYMBOLS, symbols.encode());
+    writer.add(DatabaseFile.PACKAGES, IntBuffer.wrap(packages, 0, nPackages));
+    writer.add(DatabaseFile.CONTENTS_OFFSETS, contents.offsets());
+    writer.add(DatabaseFile.CONTENTS, contents.data());
+    writer.add(DatabaseFile.REFERENCES_OFFSETS, references().offsets());
+    writer.add(DatabaseFile.REFERENCES, references().data());
+    writer.add(DatabaseFile.PROVIDERS_OFFSETS, revmap.offsets());
+    writer.add(DatabaseFile.PROVIDERS, revmap.data());
+    writer.add(DatabaseFile.DEPENDENTS_OFFSETS, dependents.offsets());
+    writer.add(DatabaseFile.DEPENDENTS, dependents.data());
+    writer.add(DatabaseFile.ALT_DEPENDENTS_OFFSETS, altDependents.offsets());
+    writer.add(DatabaseFile.ALT_DEPENDENTS, altDependents.data());
+    load_declared();
+    writer.add(DatabaseFile.DECLARED_REQUIRES_OFFSETS,
+            declaredRequires.offsets());
+    writer.add(DatabaseFile.DECLARED_REQUIRES, declaredRequires.data());
+    writer.add(DatabaseFile.DECLARED_PROVIDES_OFFSETS,
+            declaredProvides.offsets());
+    writer.add(DatabaseFile.DECLARED_PROVIDES, declaredProvides.data());
+    if (coarse)
+      writer.add(DatabaseFile.GRANULARITY, IntBuffer
+              .wrap(new int[] { DatabaseFile.GRANULARITY_JAVA_PACKAGES }));
+
+    if (!inputs.isEmpty())
+      write_inputs(writer);
+
+    writer.write(os);
+    os.close();
+    WRITE_TIME.stop(start);
   }
 
-  public void prepare() {
+  private static final int INPUT_RECORD_SIZE = 24 + Fingerprint.DIGEST_SIZE;
+  private static final int INPUT_HAS_DIGEST = 1;
+  private static final int INPUT_SHADOWED = 2;
 
-    System.err.println("Building dependency map...");
-    for (String pn : cntmap.keySet()) {
-      for (String cn : cntmap.get(pn)) {
-        Set<String> prov = revmap.get(cn);
-        if (prov == null) {
-          prov = new TreeSet<String>();
-          revmap.put(cn, prov);
-        }
-        prov.add(pn);
+  private void write_inputs(DatabaseFile.Writer writer) {
+    Map<String, Fingerprint> sorted = new TreeMap<String, Fingerprint>();
+    for (Fingerprint fp : inputs)
+      sorted.put(fp.getPath(), fp);
+
+    ByteBuffer records = ByteBuffer.allocate(INPUT_RECORD_SIZE * sorted.size())
+            .order(ByteOrder.LITTLE_ENDIAN);
+    for (Fingerprint fp : sorted.values()) {
+      records.putLong(fp.getSize());
+      records.putLong(fp.getMtime());
+      String pn = fp.getPackageName();
+      boolean shadowed = shadowedInputs.contains(fp.getPath());
+      records.putInt(pn != null && !shadowed ? packageId(pn) : -1);
+      byte[] digest = fp.getDigest();
+      records.putInt((digest != null ? INPUT_HAS_DIGEST : 0)
+              | (shadowed ? INPUT_SHADOWED : 0));
+      records.put(digest != null ? digest : new byte[Fingerprint.DIGEST_SIZE]);
+    }
+
+    writer.add(DatabaseFile.INPUT_PATHS, FrontCodedDictionary.encode(sorted
+            .keySet().toArray(new String[sorted.size()])));
+    writer.add(DatabaseFile.INPUTS, records.array());
+  }
+
+  /**
+   * Read fingerprints of input files this database was built from. Databases
+   * which don't record declared requirements of packages have none, so that
+   * all packages are read again. Inputs whose package was superseded by
+   * another input are omitted too, as their package isn't in the database.
+   * 
+   * @return map of fingerprints, indexed by input file path
+   */
+  Map<String, Fingerprint> read_inputs() throws IOException {
+    Map<String, Fingerprint> result = new HashMap<String, Fingerprint>();
+    if (file == null || !file.hasSection(DatabaseFile.INPUT_PATHS)
+            || !file.hasSection(DatabaseFile.DECLARED_REQUIRES))
+      return result;
+
+    FrontCodedDictionary paths = new FrontCodedDictionary(
+            file.section(DatabaseFile.INPUT_PATHS));
+    ByteBuffer records = file.section(DatabaseFile.INPUTS);
+    if (records.limit() != INPUT_RECORD_SIZE * paths.size())
+      throw new IOException("invalid database format");
+
+    for (int i = 0; i < paths.size(); i++) {
+      int pos = INPUT_RECORD_SIZE * i;
+      int pn = records.getInt(pos + 16);
+      if ((records.getInt(pos + 20) & INPUT_SHADOWED) != 0)
+        continue;
+      byte[] digest = null;
+      if ((records.getInt(pos + 20) & INPUT_HAS_DIGEST) != 0) {
+        digest = new byte[Fingerprint.DIGEST_SIZE];
+        records.position(pos + 24);
+        records.get(digest);
       }
+      String path = paths.get(i);
+      result.put(path, new Fingerprint(path, records.getLong(pos),
+              records.getLong(pos + 8), digest, pn >= 0 && pn < nPackages
+                      ? packageName(pn) : null));
     }
+    return result;
+  }
 
-    for (String pn : cntmap.keySet()) {
-      Set<String> cdeps = new TreeSet<String>();
-      List<Set<String>> pdeps = new ArrayList<Set<String>>();
-      classdep.put(pn, pdeps);
-      for (String cn : cntmap.get(pn))
-        cdeps.addAll(refmap.get(pn + "@" + cn));
-      cdeps.removeAll(cntmap.get(pn));
-      for (String cn : cdeps) {
-        Set<String> deps = revmap.get(cn);
-        if (deps == null) {
-          pdeps.add(Collections.singleton("@unresolved@"
-                  + cn.replaceAll("\\.[^\\.]+$", "")));
-        } else {
-          pdeps.add(deps);
-        }
+  /**
+   * Collect sorted list of classes referenced by given package, but not
+   * contained in it.
+   */
+  private void external_classes(int pn, IntList cdeps) {
+    external_classes(references(), pn, cdeps);
+  }
+
+  private void external_classes(IntTable references, int pn, IntList cdeps) {
+    cdeps.clear();
+    for (int k = contents.start(pn); k < contents.end(pn); k++)
+      cdeps.addRow(references, k);
+    cdeps.sortUnique();
+    cdeps.removeAll(contents, pn);
+  }
+
+  /**
+   * Prepare for resolving dependencies. Dependencies of packages are resolved
+   * only when they are needed and then memoized, see {@link #requires(int)}.
+   */
+  public void prepare() {
+    init_resolver();
+    executing();
+  }
+
+  /**
+   * Announce that query execution has started. Done only once, so that
+   * running many queries on one database doesn't flood standard error.
+   */
+  private synchronized void executing() {
+    if (!executing) {
+      executing = true;
+      System.err.println("Executing query...");
+    }
+  }
+
+  private synchronized void init_resolver() {
+    if (revmap != null && requires != null)
+      return;
+    long start = PREPARE_TIME.start();
+    load_revmap();
+    if (requires == null) {
+      alternatives = new RowInterner();
+      virtuals.clear();
+      virtualIndex.clear();
+      provider = new int[symbols.size()];
+      requires = new int[nPackages][];
+    }
+    PREPARE_TIME.stop(start);
+  }
+
+  /**
+   * Get id of alternative set providing given class.
+   */
+  private int provider(int cn) {
+    if (provider[cn] == 0) {
+      if (revmap.length(cn) == 0) {
+        String name = symbols.get(cn);
+        if (!coarse)
+          name = FedoraPackage.coarse_name(name);
+        provider[cn] = singleton(virtualPackageId("@unresolved@" + name)) + 1;
+      } else {
+        IntList prov = new IntList(revmap.length(cn));
+        prov.addRow(revmap, cn);
+        provider[cn] = alternatives.intern(prov) + 1;
       }
     }
+    return provider[cn] - 1;
+  }
+
+  /**
+   * Get sorted ids of alternative sets required by given package, resolving
+   * them if this wasn't done yet.
+   */
+  private synchronized int[] requires(int pn) {
+    if (requires[pn] == null)
+      requires[pn] = resolve(pn);
+    return requires[pn];
+  }
+
+  /**
+   * Resolve sorted ids of alternative sets required by given package, without
+   * memoizing them.
+   */
+  private synchronized int[] resolve(int pn) {
+    if (requires[pn] != null)
+      return requires[pn];
+    IntList deps = new IntList();
+    external_classes(pn, deps);
+    providers(deps);
+    minimize(deps);
+    return deps.toArray();
+  }
+
+  /**
+   * Replace sorted list of classes required by a package with sorted ids of
+   * alternative sets providing them, including the JRE.
+   */
+  private void providers(IntList deps) {
+    for (int i = 0; i < deps.size(); i++)
+      deps.set(i, provider(deps.get(i)));
+    deps.sortUnique();
+    optimize_JRE(deps);
+  }
+
+  /**
+   * Remove redundant sets from list of alternative sets required by a
+   * package and sort it. Doesn't modify any shared state, so it can be done
+   * for many packages concurrently, as long as no sets are being added.
+   */
+  private void minimize(IntList deps) {
+    optimize_subsets(deps);
+    deps.sortUnique();
+    RESOLVED.increment();
+  }
+
+  /**
+   * Resolve and memoize dependencies of given packages which weren't
+   * resolved yet.
+   */
+  private synchronized void resolve_all(IntList packages, int from, int to) {
+    int[][] result = null;
+    for (int first = from; first < to; first += RESOLVE_CHUNK) {
+      int last = Math.min(first + RESOLVE_CHUNK, to);
+      result = resolve_chunk(packages, first, last, result);
+      for (int i = first; i < last; i++)
+        requires[packages.get(i)] = result[i - first];
+    }
+  }
 
-    for (String pn : cntmap.keySet()) {
-      Set<String> pdeps = new TreeSet<String>();
-      pkgdep.put(pn, pdeps);
+  /**
+   * Resolve dependencies of given packages, without memoizing them.
+   * <p>
+   * Classes required by packages are collected and their redundant sets of
+   * alternatives removed in parallel. In between, sets providing the classes
+   * are looked up sequentially in order of packages, as they are interned
+   * then, so that sets get the same ids as if packages were resolved one by
+   * one.
+   * 
+   * @param result
+   *          array to store results in, or {@code null}
+   * @return sorted ids of alternative sets required by each package
+   */
+  private synchronized int[][] resolve_chunk(IntList packages, int from,
+          int to, int[][] result) {
+    init_resolver();
+    if (result == null || result.length < to - from)
+      result = new int[to - from][];
+    IntList[] deps = new IntList[to - from];
+    IntTable references = references();
 
-      Map<String, Set<String>> uniq = new TreeMap<String, Set<String>>();
-      for (Set<String> dep : classdep.get(pn))
-        uniq.put(join(" | ", dep), dep);
+    ForkJoinPool.commonPool().invoke(
+            new ResolveTask(COLLECT, packages, from, from, to, references,
+                    deps, result));
+    for (int i = 0; i < to - from; i++)
+      if (deps[i] != null)
+        providers(deps[i]);
+    ForkJoinPool.commonPool().invoke(
+            new ResolveTask(MINIMIZE, packages, from, from, to, references,
+                    deps, result));
+    return result;
+  }
+
+  private static final int COLLECT = 0;
+  private static final int MINIMIZE = 1;
+
+  private class ResolveTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int step;
+    private final IntList packages;
+    private final int base;
+    private final int from;
+    private final int to;
+    private final IntTable references;
+    private final IntList[] deps;
+    private final int[][] result;
+
+    ResolveTask(int step, IntList packages, int base, int from, int to,
+            IntTable references, IntList[] deps, int[][] result) {
+      this.step = step;
+      this.packages = packages;
+      this.base = base;
+      this.from = from;
+      this.to = to;
+      this.references = references;
+      this.deps = deps;
+      this.result = result;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > RESOLVE_THRESHOLD) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new ResolveTask(step, packages, base, from, mid,
+                references, deps, result), new ResolveTask(step, packages,
+                base, mid, to, references, deps, result));
+        return;
+      }
+      for (int i = from; i < to; i++) {
+        int pn = packages.get(i);
+        if (step == COLLECT) {
+          // Memoized dependencies are not resolved again.
+          result[i - base] = requires[pn];
+          if (requires[pn] == null) {
+            deps[i - base] = new IntList();
+            external_classes(references, pn, deps[i - base]);
+          }
+        } else if (deps[i - base] != null) {
+          minimize(deps[i - base]);
+          result[i - base] = deps[i - base].toArray();
+          deps[i - base] = null;
+        }
+      }
+    }
+  }
 
-      List<Set<String>> deps = new ArrayList<Set<String>>(uniq.values());
-      optimize_JRE(deps);
-      optimize_subsets(deps);
-      while (!deps.isEmpty()) {
-        Set<String> d1 = deps.remove(0);
-        pdeps.add(join(" | ", d1));
+  /**
+   * Build reverse dependency index by resolving dependencies of all packages.
+   * Package is a hard dependent of packages which form single-element sets of
+   * alternatives it requires, and an alternative dependent of members of
+   * other sets. Virtual packages are not indexed.
+   */
+  private synchronized void build_dependents() {
+    if (dependents != null)
+      return;
+    if (file != null && !modified && file.hasSection(DatabaseFile.DEPENDENTS)) {
+      dependents = read_table(DatabaseFile.DEPENDENTS_OFFSETS,
+              DatabaseFile.DEPENDENTS);
+      altDependents = read_table(DatabaseFile.ALT_DEPENDENTS_OFFSETS,
+              DatabaseFile.ALT_DEPENDENTS);
+      return;
+    }
+    System.err.println("Building reverse dependency index...");
+    init_resolver();
+    long start = DEPENDENTS_TIME.start();
+    IntTable sets = alternatives.table();
+    IntTable hard = new IntTable(nPackages, 4 * nPackages);
+    IntTable alt = new IntTable(nPackages, 4 * nPackages);
+    IntList hard_deps = new IntList();
+    IntList alt_deps = new IntList();
+    IntList all = new IntList(nPackages);
+    for (int pn = 0; pn < nPackages; pn++)
+      all.add(pn);
+    int[][] result = null;
+    for (int from = 0; from < nPackages; from += RESOLVE_CHUNK) {
+      int to = Math.min(from + RESOLVE_CHUNK, nPackages);
+      // Dependencies are not memoized, as they are rarely queried after the
+      // index is built.
+      result = resolve_chunk(all, from, to, result);
+      for (int pn = from; pn < to; pn++) {
+        hard_deps.clear();
+        alt_deps.clear();
+        for (int set : result[pn - from]) {
+          IntList deps = sets.length(set) == 1 ? hard_deps : alt_deps;
+          for (int i = sets.start(set); i < sets.end(set); i++)
+            if (sets.get(i) < nPackages)
+              deps.add(sets.get(i));
+        }
+        alt_deps.sortUnique();
+        hard.add(hard_deps);
+        alt.add(alt_deps);
       }
     }
+    dependents = hard.invert(nPackages);
+    altDependents = alt.invert(nPackages);
+    DEPENDENTS_TIME.stop(start);
+  }
 
-    System.err.println("Executing query...");
+  /**
+   * Get graph in which each package points to packages requiring it. Sets of
+   * alternatives are expanded according to given policy: either only hard
+   * dependencies are followed, or every member of every set of alternatives
+   * is treated as a dependency. Virtual packages are not part of the graph.
+   */
+  private synchronized PackageGraph dependents_graph(boolean alternatives) {
+    build_dependents();
+    if (!alternatives) {
+      if (hardDependentsGraph == null)
+        hardDependentsGraph = new PackageGraph(dependents);
+      return hardDependentsGraph;
+    }
+    if (dependentsGraph == null)
+      dependentsGraph = PackageGraph.union(dependents, altDependents);
+    return dependentsGraph;
   }
 
-  private Set<String> filter_pkgs(String pattern) {
-    String orig_pattern = pattern;
-    pattern = pattern.replaceAll("\\.", "\\.");
-    pattern = pattern.replaceAll("\\*", ".*");
-    pattern = "^(" + pattern + ")$";
+  /**
+   * Get range of symbol ids, which names matching given pattern can have.
+   * 
+   * @return first symbol id and the id following the last one
+   */
+  private int[] symbol_range(NamePattern pattern) {
+    if (!symbols.isSorted())
+      return new int[] { 0, symbols.size() };
+    if (pattern.isExact()) {
+      int id = symbols.lookup(pattern.getPrefix());
+      return id < 0 ? new int[] { 0, 0 } : new int[] { id, id + 1 };
+    }
+    String next = NamePattern.successor(pattern.getPrefix());
+    return new int[] { symbols.lowerBound(pattern.getPrefix()),
+        next != null ? symbols.lowerBound(next) : symbols.size() };
+  }
 
-    Set<String> match_pkgs = new TreeSet<String>();
-    for (String pn : cntmap.keySet()) {
-      if (pn.matches(pattern))
-        match_pkgs.add(pn);
+  private IntList filter_pkgs(String pattern) throws QueryException {
+    NamePattern regex = new NamePattern(pattern, false);
+    int first = 0;
+    int end = nPackages;
+    // Packages of canonical database are ordered by their symbol ids.
+    if (rows == null && symbols.isSorted()) {
+      int[] range = symbol_range(regex);
+      first = lower_bound(packages, nPackages, range[0]);
+      end = lower_bound(packages, nPackages, range[1]);
     }
-    if (match_pkgs.isEmpty()) {
-      System.err.println("No match for: " + orig_pattern);
-      System.exit(1);
+
+    IntList match_pkgs = new IntList();
+    for (int pn = first; pn < end; pn++) {
+      if (regex.isPrefix() || regex.matches(packageName(pn)))
+        match_pkgs.add(pn);
     }
+    if (match_pkgs.isEmpty())
+      throw new QueryException("No match for: " + pattern);
 
     return match_pkgs;
   }
 
-  private static String join(String delim, Set<String> depx) {
+  private static int lower_bound(int[] array, int length, int key) {
+    int i = Arrays.binarySearch(array, 0, length, key);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  private synchronized String join(String delim, int set) {
+    IntTable sets = alternatives.table();
     StringBuffer sb = new StringBuffer();
-    for (String dep : depx) {
+    for (int i = sets.start(set); i < sets.end(set); i++) {
       if (sb.length() > 0)
         sb.append(delim);
-      sb.append(dep);
+      sb.append(packageName(sets.get(i)));
     }
     return sb.toString();
   }
 
-  private void print_result(final Map<String, Set<String>> result) {
-    for (String key : result.keySet()) {
-      System.out.println(key + ":");
-      for (String val : result.get(key))
-        System.out.println("\t" + val);
-    }
+  /**
+   * Write group of values to given writer.
+   */
+  private static void write_group(ResultWriter out, String name,
+          Set<String> values) throws IOException {
+    out.group(name);
+    for (String value : values)
+      out.value(value);
   }
 
-  public void query_provides(String pattern) {
-    Set<String> packages = filter_pkgs(pattern);
+  /**
+   * Order given sorted ids of real packages or symbols by their names. Ids
+   * are already in this order if symbol table is sorted.
+   */
+  private IntList by_name(IntList ids, final boolean packages) {
+    if (symbols.isSorted())
+      return ids;
+    Integer[] order = new Integer[ids.size()];
+    for (int i = 0; i < order.length; i++)
+      order[i] = ids.get(i);
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer id1, Integer id2) {
+        return name(id1, packages).compareTo(name(id2, packages));
+      }
+    });
+    IntList result = new IntList(order.length);
+    for (int id : order)
+      result.add(id);
+    return result;
+  }
 
-    final Map<String, Set<String>> result = new TreeMap<String, Set<String>>();
-    for (String pn : packages)
-      result.put(pn, cntmap.get(pn));
-    print_result(result);
+  private String name(int id, boolean pkg) {
+    return pkg ? packageName(id) : symbols.get(id);
   }
 
-  public void query_what_provides(String regex) {
-    final Map<String, Set<String>> result = new TreeMap<String, Set<String>>();
-    Set<String> set = new TreeSet<String>();
-    result.put(regex, set);
-    regex = regex.replaceAll("\\.", "\\.");
-    regex = regex.replaceAll("\\?", ".");
-    regex = regex.replaceAll("\\*", ".*");
-    for (String pn : cntmap.keySet())
-      for (String cn : cntmap.get(pn))
-        if (cn.matches("^(" + regex + ")$"))
-          set.add(pn);
-    print_result(result);
+  public void query_provides(ResultWriter out, String pattern)
+          throws IOException, QueryException {
+    IntList packages = by_name(filter_pkgs(pattern), true);
+
+    IntList classes = new IntList();
+    for (int i = 0; i < packages.size(); i++) {
+      int pn = packages.get(i);
+      classes.clear();
+      classes.addRow(contents, pn);
+      classes = by_name(classes, false);
+      out.group(packageName(pn));
+      for (int k = 0; k < classes.size(); k++)
+        out.value(symbols.get(classes.get(k)));
+    }
   }
 
-  private Set<String> expand_package_names(String[] args) throws IOException, InterruptedException {
-    Set<String> packages = new TreeSet<String>();
-    for (String fn : args) {
-      if (fn.endsWith(".jar") || fn.endsWith(".rpm")) {
-        File f = new File(fn);
-        FedoraPackage pkg = new FedoraPackage(f);
-        if (!pkg.isJavaPackage()) {
-          System.err.println(pkg.getName() + ": not a Java package");
-        }
-        packages.add(pkg.getName());
-        addPkg(pkg);
-      } else
-        packages.addAll(filter_pkgs(fn));
+  public void query_what_provides(ResultWriter out, String regex)
+          throws IOException {
+    NamePattern pattern = new NamePattern(regex, true);
+    load_revmap();
+
+    int[] range = symbol_range(pattern);
+    IntList pkgs = new IntList();
+    Iterator<String> names = pattern.isExact() || pattern.isPrefix() ? null
+            : symbols.iterator(range[0], range[1]);
+    for (int cn = range[0]; cn < range[1]; cn++) {
+      if (names != null && !pattern.matches(names.next()))
+        continue;
+      pkgs.addRow(revmap, cn);
     }
+    pkgs.sortUnique();
+    pkgs = by_name(pkgs, true);
+    out.group(regex);
+    for (int i = 0; i < pkgs.size(); i++)
+      out.value(packageName(pkgs.get(i)));
+  }
+
+  /**
+   * Add package read from given RPM or JAR file to the database.
+   * 
+   * @return name of the added package
+   */
+  private String add_local_package(String fn) throws IOException {
+    File f = new File(fn);
+    FedoraPackage pkg = new FedoraPackage(f);
+    if (!pkg.isJavaPackage()) {
+      System.err.println(pkg.getName() + ": not a Java package");
+    }
+    addPkg(pkg);
+    return pkg.getName();
+  }
+
+  static boolean is_local_package(String fn) {
+    return fn.endsWith(".jar") || fn.endsWith(".rpm");
+  }
+
+  private IntList expand_package_names(String[] args) throws IOException,
+          QueryException {
+    List<String> local = new ArrayList<String>();
+    for (String fn : args)
+      if (is_local_package(fn))
+        local.add(add_local_package(fn));
+    canonicalize();
+
+    IntList packages = new IntList();
+    for (String pn : local)
+      packages.add(packageId(pn));
+    for (String fn : args)
+      if (!is_local_package(fn)) {
+        IntList match = filter_pkgs(fn);
+        packages.addAll(match.array(), 0, match.size());
+      }
+    packages.sortUnique();
     if (packages.isEmpty())
-      System.exit(1);
+      throw new QueryException(null);
     return packages;
   }
 
-  public void query_requires(String[] args) throws IOException,
-          InterruptedException {
-    Set<String> packages = expand_package_names(args);
+  public void query_requires(ResultWriter out, String[] args,
+          boolean recursive, boolean alternatives) throws IOException,
+          QueryException {
+    IntList packages = expand_package_names(args);
+    if (recursive) {
+      PackageGraph graph = dependents_graph(alternatives).reverse();
+      executing();
+      print_packages(out, graph.closure(packages));
+      return;
+    }
     prepare();
-    final Map<String, Set<String>> result = new TreeMap<String, Set<String>>();
-    for (String pn : packages)
-      result.put(pn, pkgdep.get(pn));
-    print_result(result);
+    packages = by_name(packages, true);
+    for (int from = 0; from < packages.size(); from += RESOLVE_CHUNK) {
+      int to = Math.min(from + RESOLVE_CHUNK, packages.size());
+      resolve_all(packages, from, to);
+      for (int i = from; i < to; i++) {
+        int pn = packages.get(i);
+        Set<String> deps = new TreeSet<String>();
+        for (int set : requires(pn))
+          deps.add(join(" | ", set));
+        write_group(out, packageName(pn), deps);
+      }
+    }
+  }
+
+  public void query_what_requires(ResultWriter out, String[] args,
+          boolean recursive, boolean alternatives) throws IOException,
+          QueryException {
+    IntList packages = expand_package_names(args);
+    build_dependents();
+    PackageGraph graph = recursive ? dependents_graph(alternatives) : null;
+    executing();
+
+    IntList result = null;
+    IntList row = new IntList();
+    IntList root = new IntList(1);
+    for (int i = 0; i < packages.size(); i++) {
+      int pn = packages.get(i);
+      if (recursive) {
+        root.clear();
+        root.add(pn);
+        row = graph.closure(root);
+      } else {
+        row.clear();
+        row.addRow(dependents, pn);
+        if (alternatives) {
+          row.addRow(altDependents, pn);
+          row.sortUnique();
+        }
+      }
+      if (result == null) {
+        result = row;
+        row = new IntList();
+      } else {
+        result.retainAll(row);
+      }
+    }
+
+    print_packages(out, result);
+  }
+
+  private void print_packages(ResultWriter out, IntList packages)
+          throws IOException {
+    packages = by_name(packages, true);
+    for (int i = 0; i < packages.size(); i++)
+      out.item(packageName(packages.get(i)));
   }
 
-  public void query_what_requires(String[] args) throws IOException, InterruptedException {
-    Set<String> packages = expand_package_names(args);
+  /**
+   * Print dependency cycles, that is groups of packages which all require
+   * each other, directly or indirectly. Cycles are printed from the largest
+   * one.
+   * 
+   * @param args
+   *          patterns of package names; if any are given, only cycles
+   *          including matching packages are printed
+   */
+  public void query_cycles(ResultWriter out, String[] args,
+          boolean alternatives) throws IOException, QueryException {
+    IntList packages = args.length > 0 ? expand_package_names(args) : null;
+    List<int[]> cycles = dependents_graph(alternatives).cycles();
+    executing();
+
+    Collections.sort(cycles, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] c1, int[] c2) {
+        if (c1.length != c2.length)
+          return c1.length > c2.length ? -1 : 1;
+        return c1[0] < c2[0] ? -1 : c1[0] == c2[0] ? 0 : 1;
+      }
+    });
+    for (int[] cycle : cycles) {
+      if (packages != null && !intersects(cycle, packages))
+        continue;
+      out.group(cycle.length + " packages");
+      IntList members = new IntList(cycle.length);
+      members.addAll(cycle, 0, cycle.length);
+      members = by_name(members, true);
+      for (int i = 0; i < members.size(); i++)
+        out.value(packageName(members.get(i)));
+    }
+  }
+
+  private static boolean intersects(int[] sorted, IntList other) {
+    for (int i = 0; i < other.size(); i++)
+      if (Arrays.binarySearch(sorted, other.get(i)) >= 0)
+        return true;
+    return false;
+  }
+
+  /**
+   * Print differences between dependencies of packages found by analysis of
+   * their classes and requirements declared in their RPM headers, only for
+   * packages which have any. A set of alternatives is missing if no declared
+   * requirement is provided by any of its members, a declared requirement is
+   * superfluous if it is provided only by packages none of the required sets
+   * contains. Requirements which no package in the database provides are
+   * ignored, as are packages not read from RPM files.
+   * <p>
+   * Packages are compared in parallel, so that the whole repository can be
+   * checked at once. Required sets and package names are copied to plain
+   * arrays before comparing, so that workers don't need to synchronize.
+   */
+  public void query_diff(ResultWriter out, String[] args)
+          throws IOException, QueryException {
+    final IntList packages = by_name(expand_package_names(args), true);
+    load_declared();
+    if (declaredProvides.length() == 0)
+      throw new QueryException("Database doesn't contain declared "
+              + "requirements of packages, rebuild it from RPM files.");
     prepare();
-    for (String pn : cntmap.keySet())
-      if (pkgdep.get(pn).containsAll(packages))
-        System.out.println(pn);
+    final IntTable capabilities = declaredProvides.invert(symbols.size());
+
+    // Packages are compared in chunks, so that results of each chunk can be
+    // written before the next one is compared.
+    final List<Set<String>> diffs = new ArrayList<Set<String>>(
+            Collections.<Set<String>> nCopies(packages.size(), null));
+    final int[][][] sets = new int[packages.size()][][];
+    // Names of packages are decoded only once, names of virtual packages are
+    // appended as resolving adds them.
+    String[] names = new String[nPackages + virtuals.size()];
+    int nNames = 0;
+    for (int from = 0; from < packages.size(); from += DIFF_CHUNK) {
+      int to = Math.min(from + DIFF_CHUNK, packages.size());
+      resolve_all(packages, from, to);
+      for (int i = from; i < to; i++)
+        sets[i] = required_sets(packages.get(i));
+      int n = nPackages + virtuals.size();
+      if (n > names.length)
+        names = Arrays.copyOf(names, Math.max(n, 2 * names.length));
+      for (; nNames < n; nNames++)
+        names[nNames] = packageName(nNames);
+      ForkJoinPool.commonPool().invoke(
+              new DiffTask(packages, capabilities, sets, names, diffs, from,
+                      to));
+      for (int i = from; i < to; i++) {
+        if (!diffs.get(i).isEmpty())
+          write_group(out, names[packages.get(i)], diffs.get(i));
+        diffs.set(i, null);
+        sets[i] = null;
+      }
+    }
+  }
+
+  private class DiffTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final IntList packages;
+    private final IntTable capabilities;
+    private final int[][][] sets;
+    private final String[] names;
+    private final List<Set<String>> diffs;
+    private final int from;
+    private final int to;
+
+    DiffTask(IntList packages, IntTable capabilities, int[][][] sets,
+            String[] names, List<Set<String>> diffs, int from, int to) {
+      this.packages = packages;
+      this.capabilities = capabilities;
+      this.sets = sets;
+      this.names = names;
+      this.diffs = diffs;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= DIFF_THRESHOLD) {
+        for (int i = from; i < to; i++)
+          diffs.set(i, diff(packages.get(i), capabilities, sets[i], names));
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(new DiffTask(packages, capabilities, sets, names, diffs, from,
+              mid), new DiffTask(packages, capabilities, sets, names, diffs,
+              mid, to));
+    }
   }
 
-  public void query_why(String pattern, String dep_name) throws IOException,
-          InterruptedException {
+  /**
+   * Compare dependencies of given package with its declared requirements.
+   * 
+   * @param capabilities
+   *          ids of packages providing each capability
+   * @param sets
+   *          members of sets of alternatives required by the package
+   * @param names
+   *          names of packages, including virtual ones, indexed by id
+   * @return descriptions of differences
+   */
+  private Set<String> diff(int pn, IntTable capabilities, int[][] sets,
+          String[] names) {
+    Set<String> diff = new TreeSet<String>();
+    if (declaredProvides.length(pn) == 0)
+      return diff;
+
+    // Packages providing any declared requirement.
+    IntList declared = new IntList();
+    for (int i = declaredRequires.start(pn); i < declaredRequires.end(pn); i++)
+      declared.addRow(capabilities, declaredRequires.get(i));
+    declared.sortUnique();
+
+    IntList used = new IntList();
+    Set<String> virtuals = new TreeSet<String>();
+    for (int[] set : sets) {
+      boolean satisfied = false;
+      for (int member : set) {
+        if (member >= nPackages) {
+          String name = names[member];
+          satisfied |= name.startsWith("@unresolved@")
+                  || declares_virtual(pn, name);
+          virtuals.add(name);
+        } else if (declared.contains(member))
+          satisfied = true;
+        used.add(member);
+      }
+      if (!satisfied)
+        diff.add("missing: " + join(" | ", set, names));
+    }
+    used.sortUnique();
+
+    for (int i = declaredRequires.start(pn); i < declaredRequires.end(pn);
+            i++) {
+      int cap = declaredRequires.get(i);
+      boolean provided = false;
+      boolean needed = false;
+      for (int k = capabilities.start(cap); k < capabilities.end(cap); k++) {
+        int provider = capabilities.get(k);
+        if (provider != pn) {
+          provided = true;
+          needed |= used.contains(provider);
+        }
+      }
+      if (!provided || needed)
+        continue;
+      String name = symbols.get(cap);
+      if (!accepted_by_virtual(name, virtuals))
+        diff.add("superfluous: " + name);
+    }
+    return diff;
+  }
+
+  /**
+   * Get members of sets of alternatives required by given package.
+   */
+  private int[][] required_sets(int pn) {
+    int[] required = requires(pn);
+    IntTable table = alternatives.table();
+    int[][] sets = new int[required.length][];
+    for (int i = 0; i < required.length; i++)
+      sets[i] = table.row(required[i]);
+    return sets;
+  }
+
+  private static String join(String delim, int[] set, String[] names) {
+    StringBuilder sb = new StringBuilder();
+    for (int member : set) {
+      if (sb.length() > 0)
+        sb.append(delim);
+      sb.append(names[member]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Whether given package declares requirement satisfying given virtual
+   * package.
+   */
+  private boolean declares_virtual(int pn, String virtual) {
+    String[] aliases = VIRTUAL_ALIASES.get(virtual);
+    if (aliases == null)
+      aliases = new String[] { virtual };
+    for (String alias : aliases) {
+      int cap = symbols.lookup(alias);
+      if (cap >= 0 && declaredRequires.contains(pn, cap))
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean accepted_by_virtual(String capability,
+          Set<String> virtuals) {
+    for (String virtual : virtuals) {
+      String[] aliases = VIRTUAL_ALIASES.get(virtual);
+      if (aliases == null ? capability.equals(virtual) : Arrays.asList(
+              aliases).contains(capability))
+        return true;
+    }
+    return false;
+  }
+
+  public void query_why(ResultWriter out, String pattern, String dep_name)
+          throws IOException, QueryException {
     if (dep_name.equals("java"))
       dep_name = "java-1.7.0-openjdk";
     if (dep_name.equals("java-devel"))
       dep_name = "java-1.7.0-openjdk-devel";
 
-    Set<String> packages;
-    if (pattern.endsWith(".jar") || pattern.endsWith(".rpm")) {
+    IntList packages;
+    if (is_local_package(pattern)) {
       File f = new File(pattern);
       FedoraPackage pkg = new FedoraPackage(f);
-      if (!pkg.isJavaPackage()) {
-        System.err.println("No Java classes found.");
-        System.exit(1);
-      }
-      packages = Collections.singleton(pkg.getName());
+      if (!pkg.isJavaPackage())
+        throw new QueryException("No Java classes found.");
       addPkg(pkg);
+      canonicalize();
+      packages = new IntList();
+      packages.add(packageId(pkg.getName()));
     } else
-      packages = filter_pkgs(pattern);
+      packages = by_name(filter_pkgs(pattern), true);
 
-    prepare();
-    final Map<String, Set<String>> result = new TreeMap<String, Set<String>>();
-    for (String pn : packages) {
-      Set<String> cdeps = new TreeSet<String>();
-      for (String cn : cntmap.get(pn))
-        cdeps.addAll(refmap.get(pn + "@" + cn));
-      cdeps.removeAll(cntmap.get(pn));
-      Set<String> pres = new TreeSet<String>();
-      for (String cn : cdeps) {
-        Set<String> deps = revmap.get(cn);
-        if (deps != null && deps.contains(dep_name))
+    load_revmap();
+    int dep = packageId(dep_name);
+    IntList cdeps = new IntList();
+    IntList pres = new IntList();
+    for (int i = 0; i < packages.size(); i++) {
+      int pn = packages.get(i);
+      external_classes(pn, cdeps);
+      pres.clear();
+      for (int j = 0; j < cdeps.size(); j++) {
+        int cn = cdeps.get(j);
+        if (dep >= 0 && revmap.contains(cn, dep))
           pres.add(cn);
       }
-      result.put(pn, pres);
+      pres = by_name(pres, false);
+      out.group(packageName(pn));
+      for (int j = 0; j < pres.size(); j++)
+        out.value(symbols.get(pres.get(j)));
     }
-    print_result(result);
   }
 
-  public void list_packages() {
-    for (String s : cntmap.keySet())
-      System.out.println(s);
+  public void list_packages(ResultWriter out) throws IOException {
+    IntList packages = new IntList(nPackages);
+    for (int pn = 0; pn < nPackages; pn++)
+      packages.add(pn);
+    print_packages(out, packages);
   }
 }
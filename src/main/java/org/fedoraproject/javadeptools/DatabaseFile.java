@@ -0,0 +1,614 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * Binary database file.
+ * <p>
+ * Database file consists of a header followed by sections. All integers are
+ * stored in little-endian byte order.
+ *
+ * <pre>
+ * offset  size  description
+ * 0       8     magic: "JDTDB\r\n\032"
+ * 8       4     format version, 1 or 2
+ * 12      4     number of sections (N)
+ * 16      24*N  section table, each entry consisting of:
+ *                 4  section id
+ *                 4  flags (version 2), reserved and zero (version 1)
+ *                 8  offset of section data from the start of the file
+ *                 8  length of section data in bytes
+ * </pre>
+ *
+ * Section data is aligned to 8 bytes. Version 1 files have all sections
+ * stored uncompressed. In version 2 files sections with flag 1 set are split
+ * into blocks, which are compressed with XZ independently of each other, and
+ * their data consists of a block index followed by compressed blocks:
+ *
+ * <pre>
+ * size  description
+ * 8     length of uncompressed section data in bytes
+ * 4     length of uncompressed block in bytes (except the last block)
+ * 4     number of blocks (B)
+ * 16*B  block index, each entry consisting of:
+ *         8  offset of compressed block from the start of section data
+ *         8  length of compressed block in bytes
+ * </pre>
+ *
+ * Blocks are compressed and decompressed in parallel. Sections are
+ * decompressed only when they are first accessed, so that queries which don't
+ * need a section don't pay for decompressing it.
+ * <p>
+ * The following sections are defined:
+ *
+ * <pre>
+ * id  name                contents
+ * 1   SYMBOLS             sorted names of all packages, classes and declared
+ *                         RPM capabilities, encoded
+ *                         as {@link FrontCodedDictionary}; index of a name
+ *                         in this dictionary is its symbol id
+ * 2   PACKAGES            int[P]: symbol ids of package names, ascending;
+ *                         index in this array is package id
+ * 3   CONTENTS_OFFSETS    int[P+1]: row offsets of CONTENTS
+ * 4   CONTENTS            int[E]: symbol ids of classes contained in each
+ *                         package, ascending within each row
+ * 5   REFERENCES_OFFSETS  int[E+1]: row offsets of REFERENCES, one row for
+ *                         each element of CONTENTS
+ * 6   REFERENCES          int[]: symbol ids of classes referenced by each
+ *                         class, ascending within each row
+ * 7   PROVIDERS_OFFSETS   int[S+1]: row offsets of PROVIDERS, one row for
+ *                         each symbol
+ * 8   PROVIDERS           int[E]: ids of packages containing each class,
+ *                         ascending within each row
+ * 9   INPUT_PATHS         sorted paths of RPM files the database was built
+ *                         from, relative to the build directory, encoded as
+ *                         {@link FrontCodedDictionary} (optional)
+ * 10  INPUTS              fingerprints of input files, one 56-byte record
+ *                         for each path in INPUT_PATHS:
+ *                           8   file size
+ *                           8   modification time (ms since the epoch)
+ *                           4   id of package read from the file, or -1
+ *                           4   flags: 1 = header digest is present,
+ *                               2 = package read from the file was
+ *                               superseded by a package with the same name
+ *                               read from another file (id is -1)
+ *                           32  RPM header digest (SHA-256, or SHA-1 padded
+ *                               with zeroes)
+ * 11  DEPENDENTS_OFFSETS  int[P+1]: row offsets of DEPENDENTS (optional)
+ * 12  DEPENDENTS          int[]: ids of packages which require each package,
+ *                         ascending within each row (optional)
+ * 13  ALT_DEPENDENTS_OFFSETS
+ *                         int[P+1]: row offsets of ALT_DEPENDENTS (optional)
+ * 14  ALT_DEPENDENTS      int[]: ids of packages which can use each package
+ *                         as one of alternatives satisfying a dependency,
+ *                         ascending within each row (optional)
+ * 15  DECLARED_REQUIRES_OFFSETS
+ *                         int[P+1]: row offsets of DECLARED_REQUIRES
+ *                         (optional)
+ * 16  DECLARED_REQUIRES   int[]: symbol ids of capabilities required by each
+ *                         package according to its RPM header, ascending
+ *                         within each row (optional)
+ * 17  DECLARED_PROVIDES_OFFSETS
+ *                         int[P+1]: row offsets of DECLARED_PROVIDES
+ *                         (optional)
+ * 18  DECLARED_PROVIDES   int[]: symbol ids of capabilities provided by each
+ *                         package according to its RPM header, including
+ *                         its own name, ascending within each row; rows of
+ *                         packages not read from RPM files are empty
+ *                         (optional)
+ * 19  GRANULARITY         int[1]: what the database indexes, 0 = classes,
+ *                         1 = Java packages and JPMS modules (optional,
+ *                         classes if absent)
+ * </pre>
+ *
+ * Readers ignore sections they don't know. Files are memory-mapped, so that
+ * only pages needed by a query are read from disk. Files written by older
+ * versions may be compressed with XZ as a whole, in which case they are
+ * decompressed into memory when opened.
+ *
+ * @author Mikolaj Izdebski
+ */
+class DatabaseFile {
+  static final int VERSION = 1;
+  static final int VERSION_BLOCKS = 2;
+
+  static final int SYMBOLS = 1;
+  static final int PACKAGES = 2;
+  static final int CONTENTS_OFFSETS = 3;
+  static final int CONTENTS = 4;
+  static final int REFERENCES_OFFSETS = 5;
+  static final int REFERENCES = 6;
+  static final int PROVIDERS_OFFSETS = 7;
+  static final int PROVIDERS = 8;
+  static final int INPUT_PATHS = 9;
+  static final int INPUTS = 10;
+  static final int DEPENDENTS_OFFSETS = 11;
+  static final int DEPENDENTS = 12;
+  static final int ALT_DEPENDENTS_OFFSETS = 13;
+  static final int ALT_DEPENDENTS = 14;
+  static final int DECLARED_REQUIRES_OFFSETS = 15;
+  static final int DECLARED_REQUIRES = 16;
+  static final int DECLARED_PROVIDES_OFFSETS = 17;
+  static final int DECLARED_PROVIDES = 18;
+  static final int GRANULARITY = 19;
+
+  static final int GRANULARITY_CLASSES = 0;
+  static final int GRANULARITY_JAVA_PACKAGES = 1;
+
+  private static final long MAGIC = 0x1a0a0d424454444aL;
+  private static final byte[] XZ_MAGIC = { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 };
+  private static final int HEADER_SIZE = 16;
+  private static final int ENTRY_SIZE = 24;
+
+  private static final int FLAG_BLOCKS = 1;
+  private static final int BLOCK_SIZE = 1 << 20;
+  private static final int BLOCK_HEADER_SIZE = 16;
+  private static final int BLOCK_ENTRY_SIZE = 16;
+  private static final int XZ_PRESET = 6;
+
+  private static final Metrics.Timer DECOMPRESS_TIME = Metrics.timer(
+          "section_decompress_seconds",
+          "Time spent decompressing a database section");
+
+  /**
+   * Section of the file, decompressed on first access if it is stored in
+   * compressed blocks.
+   */
+  private static class Section {
+    final ByteBuffer stored;
+    final boolean blocks;
+    ByteBuffer data;
+
+    Section(ByteBuffer stored, boolean blocks) {
+      this.stored = stored;
+      this.blocks = blocks;
+      if (!blocks)
+        data = stored;
+    }
+
+    long length() {
+      return blocks ? stored.getLong(0) : stored.limit();
+    }
+  }
+
+  private final Map<Integer, Section> sections = new HashMap<Integer, Section>();
+
+  private DatabaseFile(ByteBuffer buf) throws IOException {
+    buf.order(ByteOrder.LITTLE_ENDIAN);
+    if (buf.limit() < HEADER_SIZE || buf.getLong(0) != MAGIC)
+      throw new IOException("invalid database format");
+    int version = buf.getInt(8);
+    if (version != VERSION && version != VERSION_BLOCKS)
+      throw new IOException("unsupported database format version " + version);
+    int n = buf.getInt(12);
+    if (n < 0 || HEADER_SIZE + (long) ENTRY_SIZE * n > buf.limit())
+      throw new IOException("invalid database format");
+
+    for (int i = 0; i < n; i++) {
+      int pos = HEADER_SIZE + ENTRY_SIZE * i;
+      int id = buf.getInt(pos);
+      int flags = version == VERSION ? 0 : buf.getInt(pos + 4);
+      long offset = buf.getLong(pos + 8);
+      long length = buf.getLong(pos + 16);
+      if (offset < 0 || length < 0 || offset + length > buf.limit())
+        throw new IOException("invalid database format");
+      ByteBuffer section = buf.duplicate();
+      section.position((int) offset).limit((int) (offset + length));
+      section = section.slice().order(ByteOrder.LITTLE_ENDIAN);
+      boolean blocks = (flags & FLAG_BLOCKS) != 0;
+      if (blocks)
+        check_blocks(section);
+      sections.put(id, new Section(section, blocks));
+    }
+  }
+
+  private static void check_blocks(ByteBuffer section) throws IOException {
+    if (section.limit() < BLOCK_HEADER_SIZE)
+      throw new IOException("invalid database format");
+    long length = section.getLong(0);
+    int blockSize = section.getInt(8);
+    int count = section.getInt(12);
+    if (length < 0 || length > Integer.MAX_VALUE || blockSize <= 0
+            || count < 0
+            || (long) count * blockSize < length
+            || (long) (count - 1) * blockSize >= Math.max(length, 1)
+            || BLOCK_HEADER_SIZE + (long) BLOCK_ENTRY_SIZE * count > section
+                    .limit())
+      throw new IOException("invalid database format");
+    for (int i = 0; i < count; i++) {
+      int pos = BLOCK_HEADER_SIZE + BLOCK_ENTRY_SIZE * i;
+      long offset = section.getLong(pos);
+      long size = section.getLong(pos + 8);
+      if (offset < 0 || size < 0 || offset + size > section.limit())
+        throw new IOException("invalid database format");
+    }
+  }
+
+  private static boolean isCompressed(File f) throws IOException {
+    byte[] magic = new byte[XZ_MAGIC.length];
+    InputStream is = new FileInputStream(f);
+    try {
+      int n = 0;
+      while (n < magic.length) {
+        int r = is.read(magic, n, magic.length - n);
+        if (r < 0)
+          return false;
+        n += r;
+      }
+    } finally {
+      is.close();
+    }
+    for (int i = 0; i < magic.length; i++)
+      if (magic[i] != XZ_MAGIC[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Open database file, memory-mapping it if it is not compressed as a whole.
+   */
+  public static DatabaseFile open(File f) throws IOException {
+    if (isCompressed(f)) {
+      InputStream is = new XZCompressorInputStream(new ProgressFileInputStream(
+              f));
+      try {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] chunk = new byte[65536];
+        int r;
+        while ((r = is.read(chunk)) >= 0)
+          bos.write(chunk, 0, r);
+        return new DatabaseFile(ByteBuffer.wrap(bos.toByteArray()));
+      } finally {
+        is.close();
+      }
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException("database file too large: " + f);
+      ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+              channel.size());
+      System.err.println(" done.");
+      return new DatabaseFile(map);
+    } finally {
+      raf.close();
+    }
+  }
+
+  public boolean hasSection(int id) {
+    return sections.containsKey(id);
+  }
+
+  /**
+   * Get length of section data in bytes, without decompressing it.
+   */
+  public long length(int id) throws IOException {
+    Section section = sections.get(id);
+    if (section == null)
+      throw new IOException("invalid database format: missing section " + id);
+    return section.length();
+  }
+
+  /**
+   * Decompress given sections, if they weren't yet. Blocks of all the sections
+   * are decompressed in parallel.
+   */
+  public synchronized void prefetch(int... ids) throws IOException {
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    List<Section> decoded = new ArrayList<Section>();
+    for (int id : ids) {
+      Section section = sections.get(id);
+      if (section == null || section.data != null)
+        continue;
+      ByteBuffer stored = section.stored;
+      final byte[] data = new byte[(int) stored.getLong(0)];
+      int blockSize = stored.getInt(8);
+      int count = stored.getInt(12);
+      for (int i = 0; i < count; i++) {
+        int pos = BLOCK_HEADER_SIZE + BLOCK_ENTRY_SIZE * i;
+        final ByteBuffer block = stored.duplicate();
+        block.position((int) stored.getLong(pos)).limit(
+                (int) (stored.getLong(pos) + stored.getLong(pos + 8)));
+        final int off = i * blockSize;
+        final int len = Math.min(blockSize, data.length - off);
+        tasks.add(new Callable<Void>() {
+          public Void call() throws IOException {
+            decompress(block, data, off, len);
+            return null;
+          }
+        });
+      }
+      section.data = ByteBuffer.wrap(data);
+      decoded.add(section);
+    }
+
+    try {
+      run_all(tasks);
+    } catch (IOException e) {
+      for (Section section : decoded)
+        section.data = null;
+      throw e;
+    }
+  }
+
+  private static void decompress(ByteBuffer block, byte[] data, int off,
+          int len) throws IOException {
+    long start = DECOMPRESS_TIME.start();
+    byte[] compressed = new byte[block.remaining()];
+    block.get(compressed);
+    InputStream is = new XZInputStream(new ByteArrayInputStream(compressed));
+    try {
+      int n = 0;
+      while (n < len) {
+        int r = is.read(data, off + n, len - n);
+        if (r < 0)
+          throw new IOException("invalid database format: truncated block");
+        n += r;
+      }
+      if (is.read() >= 0)
+        throw new IOException("invalid database format: oversized block");
+    } finally {
+      is.close();
+    }
+    DECOMPRESS_TIME.stop(start);
+  }
+
+  /**
+   * Run given tasks in parallel in the common fork-join pool and wait for
+   * them to complete.
+   */
+  private static void run_all(List<Callable<Void>> tasks) throws IOException {
+    if (tasks.isEmpty())
+      return;
+    List<Future<Void>> futures = ForkJoinPool.commonPool().invokeAll(tasks);
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        throw new IOException("interrupted", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException)
+          throw (IOException) e.getCause();
+        throw new IOException(e.getCause());
+      }
+    }
+  }
+
+  public ByteBuffer section(int id) throws IOException {
+    Section section = sections.get(id);
+    if (section == null)
+      throw new IOException("invalid database format: missing section " + id);
+    prefetch(id);
+    return section.data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public IntBuffer intSection(int id) throws IOException {
+    return section(id).asIntBuffer();
+  }
+
+  /**
+   * Writer of database files. Sections are collected first and then written
+   * in one go, together with the header indexing them.
+   */
+  static class Writer {
+    private final boolean compress;
+    private final List<Integer> ids = new ArrayList<Integer>();
+    private final List<Object> contents = new ArrayList<Object>();
+    private final List<Long> lengths = new ArrayList<Long>();
+
+    /**
+     * @param compress
+     *          whether sections are compressed in blocks
+     */
+    public Writer(boolean compress) {
+      this.compress = compress;
+    }
+
+    public void add(int id, byte[] bytes) {
+      ids.add(id);
+      contents.add(bytes);
+      lengths.add((long) bytes.length);
+    }
+
+    public void add(int id, IntBuffer ints) {
+      ids.add(id);
+      contents.add(ints.duplicate());
+      lengths.add(4L * ints.remaining());
+    }
+
+    private static long align(long pos) {
+      return (pos + 7) & ~7L;
+    }
+
+    private static void flush(ByteBuffer staging, WritableByteChannel channel)
+            throws IOException {
+      staging.flip();
+      while (staging.hasRemaining())
+        channel.write(staging);
+      staging.clear();
+    }
+
+    private static void pad(ByteBuffer staging, WritableByteChannel channel,
+            long n) throws IOException {
+      for (long i = 0; i < n; i++) {
+        if (!staging.hasRemaining())
+          flush(staging, channel);
+        staging.put((byte) 0);
+      }
+    }
+
+    /**
+     * Get uncompressed bytes of given part of section content.
+     */
+    private static byte[] bytes(Object content, int off, int len) {
+      byte[] bytes = new byte[len];
+      if (content instanceof byte[]) {
+        System.arraycopy(content, off, bytes, 0, len);
+      } else {
+        IntBuffer ints = ((IntBuffer) content).duplicate();
+        ints.position(ints.position() + off / 4);
+        ints.limit(ints.position() + len / 4);
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+                .put(ints);
+      }
+      return bytes;
+    }
+
+    private static byte[] compress(byte[] bytes) throws IOException {
+      LZMA2Options options = new LZMA2Options(XZ_PRESET);
+      options.setDictSize(Math.max(LZMA2Options.DICT_SIZE_MIN, Math.min(
+              options.getDictSize(), bytes.length)));
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      OutputStream os = new XZOutputStream(bos, options);
+      os.write(bytes);
+      os.close();
+      return bos.toByteArray();
+    }
+
+    /**
+     * Compress all sections in parallel, replacing their contents with block
+     * index followed by compressed blocks.
+     */
+    private void compress_sections() throws IOException {
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      final List<byte[][]> blocks = new ArrayList<byte[][]>();
+      for (int i = 0; i < ids.size(); i++) {
+        final Object content = contents.get(i);
+        final long length = lengths.get(i);
+        final byte[][] sectionBlocks = new byte[(int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE)][];
+        blocks.add(sectionBlocks);
+        for (int k = 0; k < sectionBlocks.length; k++) {
+          final int block = k;
+          tasks.add(new Callable<Void>() {
+            public Void call() throws IOException {
+              int off = block * BLOCK_SIZE;
+              int len = (int) Math.min(BLOCK_SIZE, length - off);
+              sectionBlocks[block] = compress(bytes(content, off, len));
+              return null;
+            }
+          });
+        }
+      }
+      run_all(tasks);
+
+      for (int i = 0; i < ids.size(); i++) {
+        byte[][] sectionBlocks = blocks.get(i);
+        int pos = BLOCK_HEADER_SIZE + BLOCK_ENTRY_SIZE * sectionBlocks.length;
+        int size = pos;
+        for (byte[] block : sectionBlocks)
+          size += block.length;
+        ByteBuffer stored = ByteBuffer.allocate(size).order(
+                ByteOrder.LITTLE_ENDIAN);
+        stored.putLong(lengths.get(i));
+        stored.putInt(BLOCK_SIZE);
+        stored.putInt(sectionBlocks.length);
+        for (byte[] block : sectionBlocks) {
+          stored.putLong(pos);
+          stored.putLong(block.length);
+          pos += block.length;
+        }
+        for (byte[] block : sectionBlocks)
+          stored.put(block);
+        contents.set(i, stored.array());
+        lengths.set(i, (long) size);
+      }
+    }
+
+    public void write(OutputStream os) throws IOException {
+      if (compress)
+        compress_sections();
+
+      WritableByteChannel channel = Channels.newChannel(os);
+      ByteBuffer staging = ByteBuffer.allocate(65536).order(
+              ByteOrder.LITTLE_ENDIAN);
+      int n = ids.size();
+
+      staging.putLong(MAGIC);
+      staging.putInt(compress ? VERSION_BLOCKS : VERSION);
+      staging.putInt(n);
+      long pos = align(HEADER_SIZE + ENTRY_SIZE * n);
+      for (int i = 0; i < n; i++) {
+        if (staging.remaining() < ENTRY_SIZE)
+          flush(staging, channel);
+        staging.putInt(ids.get(i));
+        staging.putInt(compress ? FLAG_BLOCKS : 0);
+        staging.putLong(pos);
+        staging.putLong(lengths.get(i));
+        pos = align(pos + lengths.get(i));
+      }
+      pos = HEADER_SIZE + ENTRY_SIZE * n;
+      pad(staging, channel, align(pos) - pos);
+      pos = align(pos);
+
+      for (int i = 0; i < n; i++) {
+        Object content = contents.get(i);
+        if (content instanceof byte[]) {
+          byte[] bytes = (byte[]) content;
+          for (int off = 0; off < bytes.length;) {
+            if (!staging.hasRemaining())
+              flush(staging, channel);
+            int len = Math.min(staging.remaining(), bytes.length - off);
+            staging.put(bytes, off, len);
+            off += len;
+          }
+        } else {
+          IntBuffer ints = (IntBuffer) content;
+          while (ints.hasRemaining()) {
+            if (staging.remaining() < 4)
+              flush(staging, channel);
+            staging.putInt(ints.get());
+          }
+        }
+        pos += lengths.get(i);
+        pad(staging, channel, align(pos) - pos);
+        pos = align(pos);
+      }
+
+      flush(staging, channel);
+      os.flush();
+    }
+  }
+}
@@ -20,59 +20,162 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.ArchiveInputStream;
 
 class FedoraPackage {
+  /**
+   * Prefix of names of JPMS modules in coarse index.
+   */
+  static final String MODULE_PREFIX = "@module@";
+
   private final String name;
   private final Set<JavaClass> classes = new TreeSet<JavaClass>();
+  private final ClassScanner scanner = new ClassScanner();
+  private byte[] digest;
+  // Capabilities required and provided by the package as declared in its RPM
+  // header, or null if it wasn't read from RPM file.
+  private String[] requires;
+  private String[] provides;
 
-  private List<JavaClass> read_rpm(File rpm) throws IOException,
-          InterruptedException {
+  private List<JavaClass> read_rpm(File rpm) throws IOException {
 
-    ArchiveInputStream rpm_is = new RpmArchiveInputStream(rpm);
+    RpmArchiveInputStream rpm_is = new RpmArchiveInputStream(rpm);
     ArchiveEntry rpm_ent;
+    digest = rpm_is.getSignature().getHeaderDigest();
+    requires = declared_requires(rpm_is.getHeader());
+    provides = declared_provides(rpm_is.getHeader());
 
     List<JavaClass> list = new ArrayList<JavaClass>();
-    while ((rpm_ent = rpm_is.getNextEntry()) != null) {
-      if (rpm_ent.isDirectory() || !rpm_ent.getName().endsWith(".jar"))
-        continue;
+    while ((rpm_ent = rpm_is.getNextJarEntry()) != null)
       list.addAll(read_jar(rpm_is));
-    }
     rpm_is.close();
     return list;
   }
 
-  private List<JavaClass> read_jar(InputStream is) throws IOException {
+  /**
+   * Read classes from jar file using given scanner.
+   */
+  static List<JavaClass> read_jar(InputStream is, ClassScanner scanner)
+          throws IOException {
     List<JavaClass> list = new ArrayList<JavaClass>();
     JarInputStream jar_is = new JarInputStream(is);
     JarEntry jar_ent;
     while ((jar_ent = jar_is.getNextJarEntry()) != null) {
       if (jar_ent.isDirectory() || !jar_ent.getName().endsWith(".class"))
         continue;
-      list.add(new JavaClass(jar_ent.getName(), jar_is));
+      list.add(scanner.scan(jar_is));
     }
     return list;
   }
 
-  public FedoraPackage(File f) throws IOException, InterruptedException {
+  private List<JavaClass> read_jar(InputStream is) throws IOException {
+    return read_jar(is, scanner);
+  }
+
+  /**
+   * Read classes from exploded class directory using given scanner.
+   */
+  static List<JavaClass> read_class_directory(File dir, ClassScanner scanner)
+          throws IOException {
+    List<JavaClass> list = new ArrayList<JavaClass>();
+    read_class_directory(list, dir, scanner);
+    return list;
+  }
+
+  private static void read_class_directory(List<JavaClass> list, File dir,
+          ClassScanner scanner) throws IOException {
+    String[] children = dir.list();
+    if (children == null)
+      throw new IOException("unable to list directory " + dir);
+    Arrays.sort(children);
+    for (String child : children) {
+      File f = new File(dir, child);
+      if (f.isDirectory()) {
+        read_class_directory(list, f, scanner);
+      } else if (child.endsWith(".class")) {
+        InputStream is = new FileInputStream(f);
+        try {
+          list.add(scanner.scan(is));
+        } finally {
+          is.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Get name of package contained in RPM file with given name.
+   */
+  static String rpm_name(File rpm) {
+    return rpm.getName().replaceFirst("\\.rpm$", "")
+            .replaceAll("-[^-]*-[^-]*$", "");
+  }
+
+  /**
+   * Get name of package read from given build input. Packages are named after
+   * RPM files they come from, after Maven coordinates of jar files found in
+   * local Maven repository layout, after names of other jar files (without
+   * extension) and after paths of class directories.
+   * 
+   * @param root
+   *          directory build inputs are read from
+   * @param path
+   *          path of the input relative to the root
+   */
+  static String input_name(File root, File f, String path) {
+    String fn = f.getName();
+    if (f.isDirectory())
+      return path;
+    if (fn.endsWith(".rpm"))
+      return rpm_name(f);
+
+    String base = fn.replaceFirst("\\.jar$", "");
+    File versionDir = f.getParentFile();
+    File artifactDir = versionDir != null ? versionDir.getParentFile() : null;
+    if (artifactDir != null) {
+      String version = versionDir.getName();
+      String artifactId = artifactDir.getName();
+      String prefix = artifactId + "-" + version;
+      if (base.equals(prefix) || base.startsWith(prefix + "-")) {
+        String gav = artifactId + ":" + version;
+        if (base.length() > prefix.length())
+          gav += ":" + base.substring(prefix.length() + 1);
+        // Path is relative to the root, so whatever precedes artifact
+        // directory is groupId.
+        String[] dirs = path.split("/");
+        if (dirs.length > 3) {
+          StringBuilder groupId = new StringBuilder(dirs[0]);
+          for (int i = 1; i < dirs.length - 3; i++)
+            groupId.append('.').append(dirs[i]);
+          gav = groupId + ":" + gav;
+        }
+        return gav;
+      }
+    }
+    return base;
+  }
+
+  public FedoraPackage(File f) throws IOException {
     final String fn = f.getName();
 
     if (fn.endsWith(".rpm")) {
       classes.addAll(read_rpm(f));
-      name = fn.replaceFirst("\\.rpm$", "").replaceAll("-[^-]*-[^-]*$", "");
+      name = rpm_name(f);
     }
 
     else if (fn.endsWith(".jar")) {
-      classes.addAll(read_jar(new FileInputStream(f)));
+      classes.addAll(new MappedJar(scanner).read(f));
       name = "@jar@" + fn;
     }
 
@@ -81,6 +184,14 @@ class FedoraPackage {
     }
   }
 
+  /**
+   * Create package from classes which were already read.
+   */
+  FedoraPackage(String name, Collection<JavaClass> classes) {
+    this.name = name;
+    this.classes.addAll(classes);
+  }
+
   public boolean isJavaPackage() {
     return !classes.isEmpty();
   }
@@ -89,7 +200,108 @@ class FedoraPackage {
     return name;
   }
 
+  /**
+   * Get digest of RPM header, or {@code null} if it is not known.
+   */
+  byte[] getDigest() {
+    return digest;
+  }
+
   Collection<JavaClass> getClasses() {
     return Collections.unmodifiableCollection(classes);
   }
+
+  /**
+   * Get name representing class with given qualified name in coarse index,
+   * which is name of its Java package. Classes in the default package are
+   * represented by their own names, as the default package has no name.
+   */
+  static String coarse_name(String className) {
+    String pn = JavaClass.packageName(className);
+    return pn.isEmpty() ? className : pn;
+  }
+
+  /**
+   * Replace classes of the package with Java packages they belong to, each
+   * referencing all Java packages referenced by its classes. Module
+   * descriptors are replaced with modules they declare, named with
+   * {@link #MODULE_PREFIX}, so that packages can be looked up by module name.
+   * Modules don't reference modules they require, as these are often
+   * automatic modules, which have no descriptor, and classes of required
+   * modules are referenced by classes of the module anyway.
+   */
+  void coarsen() {
+    Map<String, Set<String>> refs = new TreeMap<String, Set<String>>();
+    for (JavaClass clazz : classes) {
+      String pn = coarse_name(clazz.getName());
+      if (clazz.getModule() != null)
+        pn = MODULE_PREFIX + clazz.getModule();
+      Set<String> deps = refs.get(pn);
+      if (deps == null) {
+        deps = new TreeSet<String>();
+        refs.put(pn, deps);
+      }
+      for (String dep : clazz.getDependencies())
+        if (!dep.equals(clazz.getName()))
+          deps.add(coarse_name(dep));
+    }
+
+    classes.clear();
+    for (Map.Entry<String, Set<String>> entry : refs.entrySet())
+      classes.add(new JavaClass(entry.getKey(), entry.getValue()));
+  }
+
+  /**
+   * Read capabilities required by package from its RPM header. Requirements
+   * on rpmlib features are omitted.
+   */
+  static String[] declared_requires(RpmHeader header) throws IOException {
+    String[] names = header.getStringArray(RpmHeader.RPMTAG_REQUIRENAME);
+    int[] flags = header.getIntArray(RpmHeader.RPMTAG_REQUIREFLAGS);
+    List<String> list = new ArrayList<String>();
+    if (names != null)
+      for (int i = 0; i < names.length; i++)
+        if (!names[i].startsWith("rpmlib(")
+                && (flags == null || i >= flags.length
+                        || (flags[i] & RpmHeader.RPMSENSE_RPMLIB) == 0))
+          list.add(names[i]);
+    return list.toArray(new String[list.size()]);
+  }
+
+  /**
+   * Read capabilities provided by package from its RPM header.
+   */
+  static String[] declared_provides(RpmHeader header) throws IOException {
+    String[] names = header.getStringArray(RpmHeader.RPMTAG_PROVIDENAME);
+    return names != null ? names : new String[0];
+  }
+
+  /**
+   * Set capabilities required and provided by the package, as declared in its
+   * RPM header.
+   */
+  void set_declared(String[] requires, String[] provides) {
+    this.requires = requires;
+    this.provides = provides;
+  }
+
+  /**
+   * Get capabilities required by the package, as declared in its RPM header,
+   * or {@code null} if it wasn't read from RPM file.
+   */
+  String[] getDeclaredRequires() {
+    return requires;
+  }
+
+  /**
+   * Get capabilities provided by the package, as declared in its RPM header,
+   * plus its name, or {@code null} if it wasn't read from RPM file.
+   */
+  String[] getDeclaredProvides() {
+    if (provides == null)
+      return null;
+    String[] result = Arrays.copyOf(provides, provides.length + 1);
+    result[provides.length] = name;
+    return result;
+  }
 }
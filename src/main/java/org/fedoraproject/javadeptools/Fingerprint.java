@@ -0,0 +1,137 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fingerprint of a database input file, used to tell whether the file changed
+ * since the database was built.
+ * <p>
+ * Files are assumed unchanged if their size and modification time are the
+ * same. If they differ, RPM header digests (if known) are compared, so that
+ * files which were merely touched or copied are not processed again.
+ *
+ * @author Mikolaj Izdebski
+ */
+class Fingerprint {
+  static final int DIGEST_SIZE = 32;
+
+  private final String path;
+  private final long size;
+  private final long mtime;
+  private byte[] digest;
+  private String packageName;
+
+  public Fingerprint(String path, long size, long mtime, byte[] digest,
+          String packageName) {
+    this.path = path;
+    this.size = size;
+    this.mtime = mtime;
+    this.digest = digest;
+    this.packageName = packageName;
+  }
+
+  /**
+   * Create fingerprint of given file. Fingerprint of a class directory is
+   * made of total size and latest modification time of class files in it.
+   *
+   * @param path
+   *          path of the file relative to the directory database is built
+   *          from
+   */
+  public Fingerprint(File file, String path) {
+    this(path, file.isDirectory() ? treeSize(file) : file.length(), file
+            .isDirectory() ? treeMtime(file) : file.lastModified(), null, null);
+  }
+
+  private static long treeSize(File dir) {
+    long size = 0;
+    File[] children = dir.listFiles();
+    if (children != null)
+      for (File f : children)
+        if (f.isDirectory())
+          size += treeSize(f);
+        else if (f.getName().endsWith(".class"))
+          size += f.length();
+    return size;
+  }
+
+  private static long treeMtime(File dir) {
+    long mtime = dir.lastModified();
+    File[] children = dir.listFiles();
+    if (children != null)
+      for (File f : children)
+        if (f.isDirectory())
+          mtime = Math.max(mtime, treeMtime(f));
+        else if (f.getName().endsWith(".class"))
+          mtime = Math.max(mtime, f.lastModified());
+    return mtime;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getMtime() {
+    return mtime;
+  }
+
+  /**
+   * Get RPM header digest, or {@code null} if it is not known.
+   */
+  public byte[] getDigest() {
+    return digest;
+  }
+
+  public void setDigest(byte[] digest) {
+    this.digest = digest;
+  }
+
+  /**
+   * Get name of Java package read from the file, or {@code null} if the file
+   * is not a Java package.
+   */
+  public String getPackageName() {
+    return packageName;
+  }
+
+  public void setPackageName(String packageName) {
+    this.packageName = packageName;
+  }
+
+  /**
+   * Check whether file metadata match.
+   */
+  public boolean sameFile(Fingerprint other) {
+    return size == other.size && mtime == other.mtime;
+  }
+
+  /**
+   * Check whether header digest of given RPM file matches this fingerprint.
+   */
+  public boolean sameDigest(File rpm) throws IOException {
+    if (digest == null)
+      return false;
+    return Arrays.equals(digest, RpmHeader.readDigest(rpm));
+  }
+}
@@ -0,0 +1,311 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only dictionary of sorted strings stored with front coding.
+ * <p>
+ * Strings are encoded in UTF-8 and grouped in blocks of {@link #BLOCK_SIZE}.
+ * The first string of each block is stored in full, every following one as
+ * the number of leading bytes it shares with its predecessor plus the
+ * remaining suffix. Lookups by id decode at most one block, lookups by name
+ * binary-search block heads and then scan a single block.
+ * <p>
+ * Encoded layout (integers are little-endian, lengths are unsigned LEB128
+ * varints):
+ *
+ * <pre>
+ * 4            number of strings (N)
+ * 4            block size (B)
+ * 4*ceil(N/B)  offset of each block, relative to the end of this table
+ *              blocks: first string as (length, bytes), following strings
+ *              as (shared prefix length, suffix length, suffix bytes)
+ * </pre>
+ *
+ * @author Mikolaj Izdebski
+ */
+class FrontCodedDictionary {
+  static final int BLOCK_SIZE = 16;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer buf;
+  private final int count;
+  private final int blockSize;
+  private final int nBlocks;
+  private final int dataStart;
+
+  public FrontCodedDictionary(ByteBuffer section) throws IOException {
+    buf = section.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    count = buf.getInt(0);
+    blockSize = buf.getInt(4);
+    if (count < 0 || blockSize <= 0)
+      throw new IOException("invalid string dictionary");
+    nBlocks = (count + blockSize - 1) / blockSize;
+    dataStart = 8 + 4 * nBlocks;
+    if (dataStart > buf.limit())
+      throw new IOException("invalid string dictionary");
+  }
+
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Cursor decoding consecutive strings of a block.
+   */
+  private class Cursor {
+    private int pos;
+    private byte[] bytes = new byte[64];
+    private int len;
+
+    Cursor(int block) {
+      pos = dataStart + buf.getInt(8 + 4 * block);
+      int n = varint();
+      ensure(n);
+      read(0, n);
+    }
+
+    private int varint() {
+      int value = 0;
+      for (int shift = 0;; shift += 7) {
+        int b = buf.get(pos++);
+        value |= (b & 0x7f) << shift;
+        if (b >= 0)
+          return value;
+      }
+    }
+
+    private void ensure(int n) {
+      if (bytes.length < n)
+        bytes = Arrays.copyOf(bytes, Math.max(n, 2 * bytes.length));
+    }
+
+    private void read(int off, int n) {
+      for (int i = 0; i < n; i++)
+        bytes[off + i] = buf.get(pos++);
+      len = off + n;
+    }
+
+    void next() {
+      int prefix = varint();
+      int n = varint();
+      ensure(prefix + n);
+      read(prefix, n);
+    }
+
+    String string() {
+      return new String(bytes, 0, len, UTF8);
+    }
+  }
+
+  public String get(int id) {
+    Cursor cursor = new Cursor(id / blockSize);
+    for (int i = id % blockSize; i > 0; i--)
+      cursor.next();
+    return cursor.string();
+  }
+
+  /**
+   * Find id of given string.
+   *
+   * @return string id or -1 if the dictionary doesn't contain it
+   */
+  public int lookup(String name) {
+    int lo = 0;
+    int hi = nBlocks - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = new Cursor(mid).string().compareTo(name);
+      if (cmp < 0)
+        lo = mid + 1;
+      else if (cmp > 0)
+        hi = mid - 1;
+      else
+        return mid * blockSize;
+    }
+
+    // Name can only be in the block preceding insertion point.
+    int block = lo - 1;
+    if (block < 0)
+      return -1;
+    Cursor cursor = new Cursor(block);
+    int end = Math.min(count, (block + 1) * blockSize);
+    for (int id = block * blockSize + 1; id < end; id++) {
+      cursor.next();
+      int cmp = cursor.string().compareTo(name);
+      if (cmp == 0)
+        return id;
+      if (cmp > 0)
+        break;
+    }
+    return -1;
+  }
+
+  /**
+   * Find the least id of string which is not less than given string.
+   *
+   * @return string id, or number of strings if all are less than given one
+   */
+  public int lowerBound(String name) {
+    int lo = 0;
+    int hi = nBlocks - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = new Cursor(mid).string().compareTo(name);
+      if (cmp < 0)
+        lo = mid + 1;
+      else if (cmp > 0)
+        hi = mid - 1;
+      else
+        return mid * blockSize;
+    }
+
+    // All strings of blocks following the insertion point are greater.
+    int block = lo - 1;
+    if (block < 0)
+      return 0;
+    Cursor cursor = new Cursor(block);
+    int end = Math.min(count, (block + 1) * blockSize);
+    for (int id = block * blockSize + 1; id < end; id++) {
+      cursor.next();
+      if (cursor.string().compareTo(name) >= 0)
+        return id;
+    }
+    return end;
+  }
+
+  /**
+   * Iterate over strings with ids in given range, in order of their ids.
+   */
+  public Iterator<String> iterator(final int from, final int to) {
+    return new Iterator<String>() {
+      private int id = from;
+      private Cursor cursor;
+
+      public boolean hasNext() {
+        return id < to;
+      }
+
+      public String next() {
+        if (id >= to)
+          throw new NoSuchElementException();
+        if (cursor == null) {
+          cursor = new Cursor(id / blockSize);
+          for (int i = id % blockSize; i > 0; i--)
+            cursor.next();
+        } else if (id % blockSize == 0) {
+          cursor = new Cursor(id / blockSize);
+        } else {
+          cursor.next();
+        }
+        id++;
+        return cursor.string();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static void writeVarint(ByteArrayOutputStream os, int value) {
+    while ((value & ~0x7f) != 0) {
+      os.write(value & 0x7f | 0x80);
+      value >>>= 7;
+    }
+    os.write(value);
+  }
+
+  private static void writeInt(byte[] array, int pos, int value) {
+    for (int i = 0; i < 4; i++)
+      array[pos + i] = (byte) (value >>> 8 * i);
+  }
+
+  /**
+   * Get encoded form of this dictionary.
+   */
+  public byte[] toByteArray() {
+    ByteBuffer view = buf.duplicate();
+    view.position(0);
+    byte[] result = new byte[view.remaining()];
+    view.get(result);
+    return result;
+  }
+
+  /**
+   * Encode sorted array of distinct strings.
+   */
+  public static byte[] encode(String[] names) {
+    Encoder encoder = new Encoder();
+    for (String name : names)
+      encoder.add(name);
+    return encoder.toByteArray();
+  }
+
+  /**
+   * Encoder of dictionaries whose strings are added one by one, so that they
+   * don't need to be held in memory all at once.
+   */
+  static class Encoder {
+    private final IntList offsets = new IntList();
+    private final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    private byte[] prev;
+    private int count;
+
+    /**
+     * Append string, which must be greater than all strings added before.
+     */
+    public void add(String name) {
+      byte[] cur = name.getBytes(UTF8);
+      if (count % BLOCK_SIZE == 0) {
+        offsets.add(os.size());
+        writeVarint(os, cur.length);
+        os.write(cur, 0, cur.length);
+      } else {
+        int prefix = 0;
+        int max = Math.min(prev.length, cur.length);
+        while (prefix < max && prev[prefix] == cur[prefix])
+          prefix++;
+        writeVarint(os, prefix);
+        writeVarint(os, cur.length - prefix);
+        os.write(cur, prefix, cur.length - prefix);
+      }
+      prev = cur;
+      count++;
+    }
+
+    public byte[] toByteArray() {
+      int nBlocks = offsets.size();
+      byte[] data = os.toByteArray();
+      byte[] result = new byte[8 + 4 * nBlocks + data.length];
+      writeInt(result, 0, count);
+      writeInt(result, 4, BLOCK_SIZE);
+      for (int i = 0; i < nBlocks; i++)
+        writeInt(result, 8 + 4 * i, offsets.get(i));
+      System.arraycopy(data, 0, result, 8 + 4 * nBlocks, data.length);
+      return result;
+    }
+  }
+}
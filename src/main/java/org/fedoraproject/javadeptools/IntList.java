@@ -0,0 +1,153 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive integers.
+ *
+ * @author Mikolaj Izdebski
+ */
+class IntList {
+  private int[] data;
+  private int size;
+
+  public IntList() {
+    this(16);
+  }
+
+  public IntList(int capacity) {
+    data = new int[Math.max(capacity, 1)];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int get(int i) {
+    return data[i];
+  }
+
+  public void set(int i, int value) {
+    data[i] = value;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public void add(int value) {
+    if (size == data.length)
+      data = Arrays.copyOf(data, 2 * size);
+    data[size++] = value;
+  }
+
+  public void addAll(int[] values, int off, int len) {
+    if (size + len > data.length)
+      data = Arrays.copyOf(data, Math.max(2 * data.length, size + len));
+    System.arraycopy(values, off, data, size, len);
+    size += len;
+  }
+
+  /**
+   * Append all elements of given row of a table.
+   */
+  public void addRow(IntTable table, int row) {
+    int start = table.start(row);
+    int len = table.end(row) - start;
+    if (size + len > data.length)
+      data = Arrays.copyOf(data, Math.max(2 * data.length, size + len));
+    for (int i = 0; i < len; i++)
+      data[size++] = table.get(start + i);
+  }
+
+  public int remove(int i) {
+    int value = data[i];
+    System.arraycopy(data, i + 1, data, i, size - i - 1);
+    size--;
+    return value;
+  }
+
+  /**
+   * Sort the list and remove duplicate elements.
+   */
+  public void sortUnique() {
+    Arrays.sort(data, 0, size);
+    int n = 0;
+    for (int i = 0; i < size; i++)
+      if (n == 0 || data[n - 1] != data[i])
+        data[n++] = data[i];
+    size = n;
+  }
+
+  /**
+   * Check whether this sorted list contains given value.
+   */
+  public boolean contains(int value) {
+    return Arrays.binarySearch(data, 0, size, value) >= 0;
+  }
+
+  /**
+   * Remove from this sorted list all elements of given sorted row of a table.
+   */
+  public void removeAll(IntTable table, int row) {
+    int j = table.start(row);
+    int end = table.end(row);
+    int n = 0;
+    for (int i = 0; i < size; i++) {
+      int value = data[i];
+      while (j < end && table.get(j) < value)
+        j++;
+      if (j == end || table.get(j) != value)
+        data[n++] = value;
+    }
+    size = n;
+  }
+
+  /**
+   * Remove from this sorted list all elements not contained in given sorted
+   * list.
+   */
+  public void retainAll(IntList other) {
+    int j = 0;
+    int n = 0;
+    for (int i = 0; i < size; i++) {
+      int value = data[i];
+      while (j < other.size && other.data[j] < value)
+        j++;
+      if (j < other.size && other.data[j] == value)
+        data[n++] = value;
+    }
+    size = n;
+  }
+
+  /**
+   * Get internal array backing this list. Only first {@link #size()} elements
+   * are meaningful.
+   */
+  int[] array() {
+    return data;
+  }
+
+  public int[] toArray() {
+    return Arrays.copyOf(data, size);
+  }
+}
@@ -0,0 +1,251 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A table of integer lists (rows) stored in compressed sparse row form: one
+ * array of row offsets and one flat array holding elements of all rows. New
+ * rows can only be appended at the end.
+ * <p>
+ * Elements of row {@code i} are stored at positions from {@code start(i)}
+ * (inclusive) to {@code end(i)} (exclusive).
+ * <p>
+ * Tables can be backed either by heap arrays or by arbitrary int buffers, for
+ * example views of memory-mapped database file. Buffer-backed tables are
+ * copied to the heap the first time a row is appended.
+ *
+ * @author Mikolaj Izdebski
+ */
+class IntTable {
+  private IntBuffer offsets;
+  private IntBuffer data;
+  private int rows;
+
+  // Arrays backing offsets and data buffers, or null if the table is backed by
+  // foreign buffers.
+  private int[] offsetsArray;
+  private int[] dataArray;
+
+  public IntTable() {
+    this(16, 64);
+  }
+
+  public IntTable(int rowCapacity, int dataCapacity) {
+    this(new int[Math.max(rowCapacity, 1) + 1], new int[Math.max(
+            dataCapacity, 1)], 0);
+  }
+
+  /**
+   * Create table from existing offset and data arrays.
+   */
+  public IntTable(int[] offsets, int[] data) {
+    this(offsets, data, offsets.length - 1);
+  }
+
+  private IntTable(int[] offsets, int[] data, int rows) {
+    offsetsArray = offsets;
+    dataArray = data;
+    this.offsets = IntBuffer.wrap(offsets);
+    this.data = IntBuffer.wrap(data);
+    this.rows = rows;
+  }
+
+  /**
+   * Create table backed by given buffers of offsets and data.
+   */
+  public IntTable(IntBuffer offsets, IntBuffer data) {
+    this.offsets = offsets;
+    this.data = data;
+    rows = offsets.limit() - 1;
+  }
+
+  /**
+   * Create table with given row lengths, filled with zeroes.
+   */
+  static IntTable withLengths(int[] lengths, int rows) {
+    int[] offsets = new int[rows + 1];
+    for (int i = 0; i < rows; i++)
+      offsets[i + 1] = offsets[i] + lengths[i];
+    return new IntTable(offsets, new int[offsets[rows]]);
+  }
+
+  public int size() {
+    return rows;
+  }
+
+  /**
+   * Total number of elements in all rows.
+   */
+  public int length() {
+    return offsets.get(rows);
+  }
+
+  public int start(int row) {
+    return offsets.get(row);
+  }
+
+  public int end(int row) {
+    return offsets.get(row + 1);
+  }
+
+  public int length(int row) {
+    return offsets.get(row + 1) - offsets.get(row);
+  }
+
+  public int get(int pos) {
+    return data.get(pos);
+  }
+
+  public int[] row(int row) {
+    int start = start(row);
+    int[] result = new int[end(row) - start];
+    for (int i = 0; i < result.length; i++)
+      result[i] = data.get(start + i);
+    return result;
+  }
+
+  /**
+   * Check whether given sorted row contains given value.
+   */
+  public boolean contains(int row, int value) {
+    int lo = start(row);
+    int hi = end(row) - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int x = data.get(mid);
+      if (x < value)
+        lo = mid + 1;
+      else if (x > value)
+        hi = mid - 1;
+      else
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check whether sorted row {@code row1} contains all elements of sorted row
+   * {@code row2}.
+   */
+  public boolean containsAll(int row1, int row2) {
+    int i = start(row1);
+    int end1 = end(row1);
+    int end2 = end(row2);
+    if (end2 - start(row2) > end1 - i)
+      return false;
+    for (int j = start(row2); j < end2; j++) {
+      int value = data.get(j);
+      while (i < end1 && data.get(i) < value)
+        i++;
+      if (i == end1 || data.get(i) != value)
+        return false;
+    }
+    return true;
+  }
+
+  private void makeWritable() {
+    if (offsetsArray != null)
+      return;
+    offsetsArray = new int[rows + 2];
+    offsets.rewind();
+    offsets.get(offsetsArray, 0, rows + 1);
+    dataArray = new int[length() + 1];
+    data.rewind();
+    data.get(dataArray, 0, length());
+    offsets = IntBuffer.wrap(offsetsArray);
+    data = IntBuffer.wrap(dataArray);
+  }
+
+  /**
+   * Append a new row.
+   *
+   * @return index of the new row
+   */
+  public int add(int[] values, int off, int len) {
+    makeWritable();
+    if (rows + 2 > offsetsArray.length) {
+      offsetsArray = Arrays.copyOf(offsetsArray, 2 * offsetsArray.length);
+      offsets = IntBuffer.wrap(offsetsArray);
+    }
+    int pos = offsetsArray[rows];
+    if (pos + len > dataArray.length) {
+      dataArray = Arrays.copyOf(dataArray, Math.max(2 * dataArray.length, pos
+              + len));
+      data = IntBuffer.wrap(dataArray);
+    }
+    System.arraycopy(values, off, dataArray, pos, len);
+    offsetsArray[rows + 1] = pos + len;
+    return rows++;
+  }
+
+  public int add(IntList list) {
+    return add(list.array(), 0, list.size());
+  }
+
+  /**
+   * Create inverted table: row {@code c} of the result lists, in ascending
+   * order, indexes of rows of this table which contain value {@code c}.
+   *
+   * @param columns
+   *          number of rows of the result; all values stored in this table
+   *          must be lower than that
+   */
+  public IntTable invert(int columns) {
+    int[] lengths = new int[columns];
+    int total = length();
+    for (int i = 0; i < total; i++)
+      lengths[data.get(i)]++;
+    IntTable result = withLengths(lengths, columns);
+    int[] fill = Arrays.copyOf(result.offsetsArray, columns);
+    for (int row = 0; row < rows; row++)
+      for (int i = start(row); i < end(row); i++)
+        result.dataArray[fill[data.get(i)]++] = row;
+    return result;
+  }
+
+  /**
+   * Release unused capacity.
+   */
+  public void trim() {
+    if (offsetsArray == null)
+      return;
+    offsetsArray = Arrays.copyOf(offsetsArray, rows + 1);
+    dataArray = Arrays.copyOf(dataArray, length());
+    offsets = IntBuffer.wrap(offsetsArray);
+    data = IntBuffer.wrap(dataArray);
+  }
+
+  /**
+   * Get read-only view of row offsets ({@code size() + 1} elements).
+   */
+  IntBuffer offsets() {
+    IntBuffer view = offsets.asReadOnlyBuffer();
+    view.clear().limit(rows + 1);
+    return view;
+  }
+
+  /**
+   * Get read-only view of elements of all rows ({@code length()} elements).
+   */
+  IntBuffer data() {
+    IntBuffer view = data.asReadOnlyBuffer();
+    view.clear().limit(length());
+    return view;
+  }
+}
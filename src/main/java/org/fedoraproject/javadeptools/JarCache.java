@@ -0,0 +1,321 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Persistent cache of classes read from jar files, indexed by SHA-256 digest
+ * of jar contents. Identical jars, which are commonly shipped by many RPM
+ * packages, are scanned only once, and only hashed by following builds.
+ * <p>
+ * Cache file is rewritten by every build. Entries used by the build are
+ * written to a new temporary file as they are looked up or added. When the
+ * build finishes, entries which weren't used are copied too, unless they were
+ * last used more than {@link #MAX_AGE} builds ago, and the new file replaces
+ * the old one.
+ * <p>
+ * File layout (integers are big-endian): 8 bytes of magic, version and
+ * generation (number of builds the cache was used by) as 4-byte integers,
+ * followed by entries. Each entry is 32 bytes of digest, generation in which
+ * it was last used, length of the rest of the entry and number of classes;
+ * for each class its name, number of classes it references and their names
+ * follow, as modified UTF-8 strings, and then name of the module the class
+ * declares (empty if it isn't a module descriptor).
+ * 
+ * @author Mikolaj Izdebski
+ */
+class JarCache implements Closeable {
+  private static final byte[] MAGIC = { 'J', 'D', 'T', 'J', 'A', 'R', 'C', 0 };
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 16;
+  private static final int ENTRY_HEADER_SIZE = Fingerprint.DIGEST_SIZE + 8;
+  // Number of builds unused entries are kept for.
+  static final int MAX_AGE = 4;
+
+  private static final Metrics.Counter HITS = Metrics.counter(
+          "jar_cache_hits_total", "Jars whose classes were found in jar cache");
+  private static final Metrics.Counter MISSES = Metrics.counter(
+          "jar_cache_misses_total", "Jars which had to be scanned");
+  private static final Metrics.Timer HASH_TIME = Metrics.timer(
+          "jar_hash_seconds", "Time spent computing digest of a jar");
+
+  private static class Entry {
+    final long offset;
+    final int length;
+    final int generation;
+
+    Entry(long offset, int length, int generation) {
+      this.offset = offset;
+      this.length = length;
+      this.generation = generation;
+    }
+  }
+
+  private final File file;
+  private final File tmp;
+  private final int generation;
+  // Entries of previous version of the cache, if any.
+  private RandomAccessFile old;
+  private final Map<ByteBuffer, Entry> oldEntries =
+          new HashMap<ByteBuffer, Entry>();
+  // Entries of the new version.
+  private RandomAccessFile out;
+  private final Map<ByteBuffer, Entry> entries =
+          new HashMap<ByteBuffer, Entry>();
+
+  /**
+   * Open cache stored in given file, creating it if it doesn't exist.
+   */
+  public JarCache(File file) throws IOException {
+    this.file = file.getAbsoluteFile();
+    int oldGeneration = file.exists() ? read_index() : 0;
+    generation = oldGeneration + 1;
+
+    tmp = File.createTempFile(".java-deptools", ".tmp", this.file
+            .getParentFile());
+    out = new RandomAccessFile(tmp, "rw");
+    out.setLength(0);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADER_SIZE);
+    DataOutputStream os = new DataOutputStream(bos);
+    os.write(MAGIC);
+    os.writeInt(VERSION);
+    os.writeInt(generation);
+    out.write(bos.toByteArray());
+  }
+
+  /**
+   * Read index of entries of the existing cache file.
+   * 
+   * @return generation of the cache
+   */
+  private int read_index() throws IOException {
+    DataInputStream is = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file), 65536));
+    try {
+      byte[] magic = new byte[MAGIC.length];
+      is.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC) || is.readInt() != VERSION) {
+        System.err.println("Ignoring jar cache " + file
+                + ": unsupported format");
+        return 0;
+      }
+      int oldGeneration = is.readInt();
+      long pos = HEADER_SIZE;
+      for (;;) {
+        byte[] digest = new byte[Fingerprint.DIGEST_SIZE];
+        try {
+          is.readFully(digest);
+        } catch (EOFException e) {
+          break;
+        }
+        int entryGeneration = is.readInt();
+        int length = is.readInt();
+        pos += ENTRY_HEADER_SIZE;
+        oldEntries.put(ByteBuffer.wrap(digest), new Entry(pos, length,
+                entryGeneration));
+        is.skipBytes(length);
+        pos += length;
+      }
+      if (pos != file.length())
+        throw new IOException("truncated jar cache " + file);
+      old = new RandomAccessFile(file, "r");
+      return oldGeneration;
+    } catch (IOException e) {
+      System.err.println("Ignoring jar cache " + file + ": " + e);
+      oldEntries.clear();
+      return 0;
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Compute digest of given jar contents.
+   */
+  public static byte[] digest(ByteBuffer jar) {
+    long start = HASH_TIME.start();
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(jar.duplicate());
+      return md.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      HASH_TIME.stop(start);
+    }
+  }
+
+  private static byte[] read(RandomAccessFile raf, Entry entry)
+          throws IOException {
+    byte[] payload = new byte[entry.length];
+    raf.seek(entry.offset);
+    raf.readFully(payload);
+    return payload;
+  }
+
+  private void append(byte[] digest, int entryGeneration, byte[] payload)
+          throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(ENTRY_HEADER_SIZE);
+    DataOutputStream os = new DataOutputStream(bos);
+    os.write(digest);
+    os.writeInt(entryGeneration);
+    os.writeInt(payload.length);
+    long pos = out.length();
+    out.seek(pos);
+    out.write(bos.toByteArray());
+    out.write(payload);
+    entries.put(ByteBuffer.wrap(digest), new Entry(pos + ENTRY_HEADER_SIZE,
+            payload.length, entryGeneration));
+  }
+
+  /**
+   * Get classes of jar with given digest.
+   * 
+   * @return list of classes, or {@code null} if the jar is not cached
+   */
+  public List<JavaClass> get(byte[] digest) throws IOException {
+    byte[] payload;
+    synchronized (this) {
+      ByteBuffer key = ByteBuffer.wrap(digest);
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        payload = read(out, entry);
+      } else {
+        entry = oldEntries.get(key);
+        if (entry == null) {
+          MISSES.increment();
+          return null;
+        }
+        payload = read(old, entry);
+        append(digest, generation, payload);
+      }
+    }
+    HITS.increment();
+    return decode(payload);
+  }
+
+  /**
+   * Add classes of jar with given digest.
+   */
+  public void put(byte[] digest, List<JavaClass> classes) throws IOException {
+    byte[] payload = encode(classes);
+    synchronized (this) {
+      if (!entries.containsKey(ByteBuffer.wrap(digest)))
+        append(digest, generation, payload);
+    }
+  }
+
+  /**
+   * Read classes from jar with given contents, unless they are cached.
+   */
+  public List<JavaClass> read_jar(byte[] jar, ClassScanner scanner)
+          throws IOException {
+    byte[] digest = digest(ByteBuffer.wrap(jar));
+    List<JavaClass> classes = get(digest);
+    if (classes == null) {
+      classes = FedoraPackage.read_jar(new ByteArrayInputStream(jar), scanner);
+      put(digest, classes);
+    }
+    return classes;
+  }
+
+  private static byte[] encode(List<JavaClass> classes) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream os = new DataOutputStream(bos);
+    os.writeInt(classes.size());
+    for (JavaClass clazz : classes) {
+      os.writeUTF(clazz.getName());
+      Set<String> deps = clazz.getDependencies();
+      os.writeInt(deps.size());
+      for (String dep : deps)
+        os.writeUTF(dep);
+      os.writeUTF(clazz.getModule() != null ? clazz.getModule() : "");
+    }
+    os.flush();
+    return bos.toByteArray();
+  }
+
+  private static List<JavaClass> decode(byte[] payload) throws IOException {
+    DataInputStream is = new DataInputStream(new ByteArrayInputStream(payload));
+    int n = is.readInt();
+    List<JavaClass> classes = new ArrayList<JavaClass>(n);
+    for (int i = 0; i < n; i++) {
+      String name = is.readUTF();
+      int nDeps = is.readInt();
+      Set<String> deps = new TreeSet<String>();
+      for (int j = 0; j < nDeps; j++)
+        deps.add(is.readUTF());
+      String module = is.readUTF();
+      classes.add(new JavaClass(name, deps, module.isEmpty() ? null : module));
+    }
+    return classes;
+  }
+
+  /**
+   * Copy entries which weren't used, but are still young enough, and replace
+   * cache file with the new version.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (out == null)
+      return;
+    try {
+      for (Map.Entry<ByteBuffer, Entry> e : oldEntries.entrySet()) {
+        Entry entry = e.getValue();
+        if (!entries.containsKey(e.getKey())
+                && generation - entry.generation <= MAX_AGE)
+          append(e.getKey().array(), entry.generation, read(old, entry));
+      }
+      out.close();
+      out = null;
+      if (old != null)
+        old.close();
+      old = null;
+      Files.move(tmp.toPath(), file.toPath(),
+              StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      if (out != null)
+        out.close();
+      if (old != null)
+        old.close();
+      tmp.delete();
+    }
+  }
+}
@@ -15,16 +15,7 @@
  */
 package org.fedoraproject.javadeptools;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.Set;
-import java.util.TreeSet;
-
-import org.apache.bcel.classfile.ClassParser;
-import org.apache.bcel.classfile.Constant;
-import org.apache.bcel.classfile.ConstantClass;
-import org.apache.bcel.classfile.ConstantPool;
-import org.apache.bcel.classfile.ConstantUtf8;
 
 /**
  * This class represents a Java class.
@@ -33,37 +24,38 @@ import org.apache.bcel.classfile.ConstantUtf8;
  */
 class JavaClass implements Comparable<JavaClass> {
   private final String name;
-  private final Set<String> dependencies = new TreeSet<String>();
+  private final Set<String> dependencies;
+  private final String module;
 
   /**
-   * Read class definition from an input stream.
+   * Create class definition.
    * 
-   * @param filename
-   *          the name of the class file (used to determine the class name)
-   * @param is
-   *          the input stream to read the class file from
-   * @throws IOException
-   *           if I/O exception occurs while reading from the input stream
+   * @param name
+   *          the qualified name of the class
+   * @param dependencies
+   *          qualified names of classes referenced by the class
+   * @see ClassScanner
    */
-  public JavaClass(String filename, InputStream is) throws IOException {
-    ClassParser parser = new ClassParser(is, filename);
-    org.apache.bcel.classfile.JavaClass clazz = parser.parse();
-    ConstantPool cp = clazz.getConstantPool();
-    name = clazz.getClassName();
+  JavaClass(String name, Set<String> dependencies) {
+    this(name, dependencies, null);
+  }
 
-    for (Constant c : cp.getConstantPool()) {
-      if (c instanceof ConstantClass) {
-        ConstantClass cc = (ConstantClass) c;
-        ConstantUtf8 cs = (ConstantUtf8) cp.getConstant(cc.getNameIndex());
-        String cn = new String(cs.getBytes());
-        if (cn.contains("["))
-          continue;
-        cn = cn.replaceAll("^\\[L", "");
-        cn = cn.replaceAll(";", "");
-        cn = cn.replaceAll("/", ".");
-        getDependencies().add(cn);
-      }
-    }
+  /**
+   * Create definition of a class, which may be a module descriptor.
+   * 
+   * @param name
+   *          the qualified name of the class
+   * @param dependencies
+   *          qualified names of classes referenced by the class
+   * @param module
+   *          name of the module declared by the class, or {@code null} if the
+   *          class is not a module descriptor
+   * @see ClassScanner
+   */
+  JavaClass(String name, Set<String> dependencies, String module) {
+    this.name = name;
+    this.dependencies = dependencies;
+    this.module = module;
   }
 
   /**
@@ -81,7 +73,26 @@ class JavaClass implements Comparable<JavaClass> {
    * @return the qualified name of the Java package the class belongs to.
    */
   public String getPackageName() {
-    return name;
+    return packageName(name);
+  }
+
+  /**
+   * Get the qualified name of the Java package class with given qualified name
+   * belongs to, which is empty for classes in the default package.
+   */
+  static String packageName(String className) {
+    int dot = className.lastIndexOf('.');
+    return dot < 0 ? "" : className.substring(0, dot);
+  }
+
+  /**
+   * Get name of the module declared by the class.
+   * 
+   * @return name of the module, or {@code null} if the class is not a module
+   *         descriptor
+   */
+  public String getModule() {
+    return module;
   }
 
   public int compareTo(JavaClass rhs) {
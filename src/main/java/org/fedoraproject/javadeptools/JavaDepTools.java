@@ -15,9 +15,17 @@
  */
 package org.fedoraproject.javadeptools;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -36,38 +44,30 @@ class JavDepTools {
   static {
     options.addOption("z", "database", true,
             "specify database file location (required)");
-    options.addOption(
-            "p",
-            "provides",
-            false,
-            "print a set of classes provided by given Fedora package, RPM package or JAR file");
-    options.addOption("P", "what-provides", false,
-            "print a set of Fedora packages that provide the specified Java class");
-    options.addOption(
-            "q",
-            "requires",
-            false,
-            "print print a set of Fedora packages required by given Fedora package, RPM package or JAR file");
-    options.addOption("Q", "what-requires", false,
-            "print print a set of Fedora packages that require given Fedora package");
-    options.addOption(
-            "d",
-            "diff",
-            false,
-            "show differences between real and declared Fedora or RPM package requirements");
-    options.addOption(
-            "d",
-            "diff",
-            false,
-            "show differences between real and declared Fedora or RPM package requirements");
-    options.addOption("w", "why", false,
-            "explain why specified packages require given other package");
+    QueryRunner.add_options(options);
     options.addOption("b", "build", false,
-            "build package database from specified directory");
+            "build package database from RPM files, jar files and class directories in specified directory");
+    options.addOption("u", "update", false,
+            "with --build, reuse existing database contents for inputs which didn't change since it was built");
+    options.addOption("m", "memory-budget", true,
+            "with --build, keep at most given number of megabytes of packages read in memory, storing the rest in temporary files next to the database");
+    options.addOption("j", "jar-cache", true,
+            "with --build, look up classes of jars in given cache file by digest of their contents instead of scanning them, adding jars which weren't found");
+    options.addOption("coarse", false,
+            "with --build, index Java packages and JPMS modules (named @module@NAME) instead of classes, which makes the database much smaller and faster to load (--why then names Java packages, so keep a class-level database for finer explanations)");
+    options.addOption("c", "compress", false,
+            "compress built database with XZ (slower to open than uncompressed database)");
     options.addOption("h", "help", false, "print help about usage and exit");
     options.addOption("V", "version", false,
             "print version information and exit");
-    options.addOption("list", false, "list all indexed packages");
+    options.addOption("S", "serve", true,
+            "load database once and answer queries sent to given TCP port on loopback interface, reloading the database when its file changes");
+    options.addOption("C", "connect", true,
+            "send query to server listening on given TCP port on loopback interface instead of reading database");
+    options.addOption("B", "batch", true,
+            "run queries read from given file (or standard input if \"-\"), one per line, printing results in input order");
+    options.addOption("M", "metrics", true,
+            "write build and query metrics to given file when done, as JSON if its name ends with .json, otherwise in Prometheus text format");
   }
 
   JavDepTools(String[] args) throws ParseException {
@@ -100,6 +100,9 @@ class JavDepTools {
     exclusive_opts.add("diff");
     exclusive_opts.add("why");
     exclusive_opts.add("list");
+    exclusive_opts.add("cycles");
+    exclusive_opts.add("serve");
+    exclusive_opts.add("batch");
 
     int nExclusive = 0;
     for (String opt : exclusive_opts)
@@ -112,61 +115,152 @@ class JavDepTools {
       System.exit(1);
     }
 
-    if (nExclusive != 1 || (args.length == 0 && !line.hasOption("list"))
-            || !line.hasOption("database")) {
+    if (nExclusive != 1
+            || (args.length == 0 && !line.hasOption("list")
+                    && !line.hasOption("cycles")
+                    && !line.hasOption("serve") && !line.hasOption("batch"))
+            || !(line.hasOption("database") || line.hasOption("connect"))
+            || (line.hasOption("connect") && (line.hasOption("build")
+                    || line.hasOption("serve") || line.hasOption("batch")))) {
       System.err
               .println("Missing argument. Specify -h for help about usage.");
       System.exit(1);
     }
 
-    String db_path = line.getOptionValue("database");
+    String format = line.getOptionValue("format");
+    if (format != null && !Arrays.asList(ResultWriter.FORMATS).contains(format)) {
+      System.err.println("Unsupported output format: " + format);
+      System.exit(1);
+    }
 
-    if (line.hasOption("build")) {
-      build(db_path);
+    try {
+      run_operation();
+    } finally {
+      if (line.hasOption("metrics"))
+        Metrics.write(new File(line.getOptionValue("metrics")));
+    }
+  }
+
+  private void run_operation() throws Exception {
+    if (line.hasOption("connect")) {
+      QueryClient client = new QueryClient(parse_port(line
+              .getOptionValue("connect")));
+      client.query(query_name(), args, line.hasOption("recursive"),
+              line.hasOption("alternatives"), line.getOptionValue("format"));
       return;
     }
 
-    Database db = new Database(new File(db_path));
+    String db_path = line.getOptionValue("database");
 
-    if (line.hasOption("requires")) {
-      db.query_requires(args);
+    if (line.hasOption("build")) {
+      build(db_path);
       return;
     }
 
-    if (line.hasOption("what-requires")) {
-      db.query_what_requires(args);
+    if (line.hasOption("serve")) {
+      new QueryServer(new File(db_path), parse_port(line
+              .getOptionValue("serve"))).run();
       return;
     }
 
-    if (line.hasOption("provides")) {
-      db.query_provides(args[0]);
+    Database db = new Database(new File(db_path));
+
+    if (line.hasOption("batch")) {
+      batch(db, line.getOptionValue("batch"), line.getOptionValue("format"));
       return;
     }
 
-    if (line.hasOption("what-provides")) {
-      db.query_what_provides(args[0]);
-      return;
+    // Results are written through the buffer of result writer instead of
+    // System.out, which is synchronized and flushed on every line.
+    ResultWriter out = ResultWriter.create(line.getOptionValue("format"),
+            new FileOutputStream(FileDescriptor.out));
+    try {
+      QueryRunner.run_query(db, query_name(), args,
+              line.hasOption("recursive"), line.hasOption("alternatives"), out);
+    } finally {
+      out.finish();
     }
+  }
 
-    if (line.hasOption("list")) {
-      db.list_packages();
-      return;
+  private String query_name() {
+    for (String query : QueryRunner.QUERIES)
+      if (line.hasOption(query))
+        return query;
+    throw new IllegalStateException();
+  }
+
+  private static int parse_port(String port) {
+    try {
+      return Integer.parseInt(port);
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid port number: " + port);
+      System.exit(1);
+      return -1;
     }
+  }
 
-    if (line.hasOption("why")) {
-      if (args.length < 2) {
-        System.err.println("Option --why requires two arguments.");
-        System.exit(1);
-      }
-      db.query_why(args[0], args[1]);
-      return;
+  private static long parse_megabytes(String size) {
+    try {
+      long mb = Long.parseLong(size);
+      if (mb > 0)
+        return mb << 20;
+    } catch (NumberFormatException e) {
     }
+    System.err.println("Invalid memory budget: " + size);
+    System.exit(1);
+    return -1;
+  }
 
-    assert false;
+  private static void batch(Database db, String path, String format)
+          throws IOException, QueryException {
+    InputStream is = path.equals("-") ? System.in : new FileInputStream(path);
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(is));
+      int nFailed = new QueryBatch(db, format).run(in, System.out);
+      if (nFailed > 0)
+        throw new QueryException(nFailed + " queries failed.");
+    } finally {
+      if (is != System.in)
+        is.close();
+    }
   }
 
   private void build(String db_path) throws IOException {
-    Database db = new Database(new File(args[0]), 0);
-    db.write(new FileOutputStream(db_path));
+    File db_file = new File(db_path).getAbsoluteFile();
+    Database previous = null;
+    if (line.hasOption("update") && db_file.exists())
+      previous = new Database(db_file);
+
+    File spill_dir = null;
+    long budget = 0;
+    if (line.hasOption("memory-budget")) {
+      spill_dir = db_file.getParentFile();
+      budget = parse_megabytes(line.getOptionValue("memory-budget"));
+    }
+
+    JarCache cache = null;
+    if (line.hasOption("jar-cache"))
+      cache = new JarCache(new File(line.getOptionValue("jar-cache")));
+    Database db;
+    try {
+      db = new Database(new File(args[0]), previous, spill_dir, budget, cache,
+              line.hasOption("coarse"));
+    } finally {
+      if (cache != null)
+        cache.close();
+    }
+
+    // Write to a temporary file first, as previous database may still be
+    // memory-mapped.
+    File tmp = File.createTempFile(".java-deptools", ".tmp",
+            db_file.getParentFile());
+    try {
+      db.write(new FileOutputStream(tmp), line.hasOption("compress"));
+      Files.move(tmp.toPath(), db_file.toPath(),
+              StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmp.delete();
+    }
   }
 }
@@ -21,6 +21,10 @@ public class Main {
       JavDepTools app = new JavDepTools(args);
       app.run();
       System.exit(0);
+    } catch (QueryException e) {
+      if (e.getMessage() != null)
+        System.err.println(e.getMessage());
+      System.exit(1);
     } catch (Exception e) {
       System.err.println("Unhandled exception:");
       e.printStackTrace();
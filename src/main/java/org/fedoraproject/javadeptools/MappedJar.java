@@ -0,0 +1,211 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Random-access reader of jar files stored on disk.
+ * <p>
+ * Instead of inflating the whole archive sequentially, the zip central
+ * directory is read and only entries with names ending in {@code .class} are
+ * inflated, and only as far as {@link ClassScanner} needs. Large files are
+ * memory-mapped, small ones are read into memory in one go to avoid exhausting
+ * the number of mappings when thousands of jars are read.
+ * <p>
+ * Archives which can't be read this way (like ZIP64 archives or archives with
+ * unsupported compression methods) are read sequentially with
+ * {@link FedoraPackage#read_jar(InputStream, ClassScanner)}.
+ *
+ * @author Mikolaj Izdebski
+ */
+class MappedJar {
+  private static final int MAP_THRESHOLD = 1 << 20;
+
+  private static final int LOCAL_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_HEADER_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+
+  private final ClassScanner scanner;
+  private final JarCache cache;
+  private final Inflater inflater = new Inflater(true);
+  private byte[] buf = new byte[8192];
+
+  /**
+   * Create reader scanning classes with given scanner.
+   */
+  public MappedJar(ClassScanner scanner) {
+    this(scanner, null);
+  }
+
+  /**
+   * Create reader scanning classes with given scanner, unless they are found
+   * in given cache.
+   */
+  public MappedJar(ClassScanner scanner, JarCache cache) {
+    this.scanner = scanner;
+    this.cache = cache;
+  }
+
+  /**
+   * Read classes from given jar file.
+   */
+  public List<JavaClass> read(File jar) throws IOException {
+    ByteBuffer map;
+    RandomAccessFile raf = new RandomAccessFile(jar, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE)
+        return read_sequentially(jar);
+      if (size >= MAP_THRESHOLD) {
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      } else {
+        map = ByteBuffer.allocate((int) size);
+        while (map.hasRemaining())
+          if (channel.read(map) < 0)
+            throw new IOException("unexpected end of file: " + jar);
+        map.flip();
+      }
+    } finally {
+      raf.close();
+    }
+    map.order(ByteOrder.LITTLE_ENDIAN);
+
+    byte[] digest = null;
+    if (cache != null) {
+      digest = JarCache.digest(map);
+      List<JavaClass> cached = cache.get(digest);
+      if (cached != null)
+        return cached;
+    }
+    List<JavaClass> list = read(map);
+    if (list == null)
+      list = read_sequentially(jar);
+    if (cache != null)
+      cache.put(digest, list);
+    return list;
+  }
+
+  private List<JavaClass> read_sequentially(File jar) throws IOException {
+    InputStream is = new FileInputStream(jar);
+    try {
+      return FedoraPackage.read_jar(is, scanner);
+    } finally {
+      is.close();
+    }
+  }
+
+  private static int find_end(ByteBuffer map) {
+    int min = Math.max(0, map.limit() - END_HEADER_SIZE - MAX_COMMENT_SIZE);
+    for (int pos = map.limit() - END_HEADER_SIZE; pos >= min; pos--)
+      if (map.getInt(pos) == END_SIGNATURE)
+        return pos;
+    return -1;
+  }
+
+  /**
+   * @return list of classes or {@code null} if the archive must be read
+   *         sequentially
+   */
+  private List<JavaClass> read(ByteBuffer map) throws IOException {
+    int end = find_end(map);
+    if (end < 0)
+      return null;
+    int count = map.getShort(end + 10) & 0xffff;
+    long cdOffset = map.getInt(end + 16) & 0xffffffffL;
+    if (count == 0xffff || cdOffset == 0xffffffffL || cdOffset > end)
+      return null;
+
+    List<JavaClass> list = new ArrayList<JavaClass>();
+    int pos = (int) cdOffset;
+    for (int i = 0; i < count; i++) {
+      if (pos + CENTRAL_HEADER_SIZE > end
+              || map.getInt(pos) != CENTRAL_SIGNATURE)
+        return null;
+      int method = map.getShort(pos + 10) & 0xffff;
+      long compressedSize = map.getInt(pos + 20) & 0xffffffffL;
+      int nameLength = map.getShort(pos + 28) & 0xffff;
+      int extraLength = map.getShort(pos + 30) & 0xffff;
+      int commentLength = map.getShort(pos + 32) & 0xffff;
+      long localOffset = map.getInt(pos + 42) & 0xffffffffL;
+      int namePos = pos + CENTRAL_HEADER_SIZE;
+      pos = namePos + nameLength + extraLength + commentLength;
+
+      if (!is_class(map, namePos, nameLength))
+        continue;
+      if (method != STORED && method != DEFLATED)
+        return null;
+      if (localOffset + LOCAL_HEADER_SIZE > cdOffset
+              || map.getInt((int) localOffset) != LOCAL_SIGNATURE)
+        return null;
+      long dataOffset = localOffset + LOCAL_HEADER_SIZE
+              + (map.getShort((int) localOffset + 26) & 0xffff)
+              + (map.getShort((int) localOffset + 28) & 0xffff);
+      if (dataOffset + compressedSize > cdOffset)
+        return null;
+
+      list.add(scanner.scan(open(map, (int) dataOffset, (int) compressedSize,
+              method)));
+    }
+    return list;
+  }
+
+  private static boolean is_class(ByteBuffer map, int pos, int length) {
+    final byte[] suffix = { '.', 'c', 'l', 'a', 's', 's' };
+    if (length < suffix.length)
+      return false;
+    for (int i = 0; i < suffix.length; i++)
+      if (map.get(pos + length - suffix.length + i) != suffix[i])
+        return false;
+    return true;
+  }
+
+  private InputStream open(ByteBuffer map, int offset, int length, int method) {
+    // Inflater in "nowrap" mode needs an extra dummy byte at the end of input.
+    if (buf.length < length + 1)
+      buf = new byte[Math.max(length + 1, 2 * buf.length)];
+    ByteBuffer data = map.duplicate();
+    data.position(offset);
+    data.get(buf, 0, length);
+    buf[length] = 0;
+
+    if (method == STORED)
+      return new ByteArrayInputStream(buf, 0, length);
+    inflater.reset();
+    return new InflaterInputStream(new ByteArrayInputStream(buf, 0,
+            length + 1), inflater, 4096);
+  }
+}
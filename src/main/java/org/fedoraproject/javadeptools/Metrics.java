@@ -0,0 +1,399 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of metrics recorded while building databases and running queries.
+ * <p>
+ * Metrics are registered once, usually in static initializers of classes
+ * recording them, and are always enabled. Recording is cheap: counters and
+ * histogram buckets are {@link LongAdder}s, so that threads recording them
+ * concurrently don't contend, and durations are measured with
+ * {@link System#nanoTime()} at stage granularity (per input or jar), never per
+ * class.
+ * <p>
+ * All registered metrics can be written in Prometheus text exposition format
+ * or as a JSON object. Durations are exported in seconds.
+ *
+ * @author Mikolaj Izdebski
+ */
+class Metrics {
+  private static final String PREFIX = "javadeptools_";
+  private static final Map<String, Metric> registry =
+          new LinkedHashMap<String, Metric>();
+
+  private abstract static class Metric {
+    final String name;
+    final String help;
+
+    Metric(String name, String help) {
+      this.name = PREFIX + name;
+      this.help = help;
+    }
+
+    abstract String type();
+
+    abstract void writePrometheus(PrintWriter out);
+
+    abstract void writeJson(PrintWriter out);
+  }
+
+  /**
+   * Monotonically increasing count of events or bytes.
+   */
+  static class Counter extends Metric {
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, String help) {
+      super(name, help);
+    }
+
+    public void add(long n) {
+      value.add(n);
+    }
+
+    public void increment() {
+      value.increment();
+    }
+
+    public long get() {
+      return value.sum();
+    }
+
+    String type() {
+      return "counter";
+    }
+
+    void writePrometheus(PrintWriter out) {
+      out.println(name + " " + get());
+    }
+
+    void writeJson(PrintWriter out) {
+      out.print("\"value\": " + get());
+    }
+  }
+
+  /**
+   * Histogram of durations. Buckets are exponential, from 100 microseconds
+   * doubling up to about 52 seconds.
+   */
+  static class Timer extends Metric {
+    private static final long BASE = 100000;
+    private static final int N_BUCKETS = 20;
+
+    private final LongAdder[] buckets = new LongAdder[N_BUCKETS + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    Timer(String name, String help) {
+      super(name, help);
+      for (int i = 0; i < buckets.length; i++)
+        buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Get start time of a measured event, to be passed to {@link #stop(long)}.
+     */
+    public long start() {
+      return System.nanoTime();
+    }
+
+    /**
+     * Record duration of event which started at given time.
+     *
+     * @return the recorded duration in nanoseconds
+     */
+    public long stop(long start) {
+      long nanos = System.nanoTime() - start;
+      record(nanos);
+      return nanos;
+    }
+
+    public void record(long nanos) {
+      long units = Math.max(nanos, 0) / BASE;
+      int i = units == 0 ? 0 : 64 - Long.numberOfLeadingZeros(units);
+      buckets[Math.min(i, N_BUCKETS)].increment();
+      count.increment();
+      sum.add(nanos);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    /**
+     * Get total of recorded durations in nanoseconds.
+     */
+    public long getSum() {
+      return sum.sum();
+    }
+
+    private static double bound(int i) {
+      return seconds(BASE << i);
+    }
+
+    String type() {
+      return "histogram";
+    }
+
+    void writePrometheus(PrintWriter out) {
+      long cumulative = 0;
+      for (int i = 0; i < N_BUCKETS; i++) {
+        cumulative += buckets[i].sum();
+        out.println(name + "_bucket{le=\"" + format(bound(i)) + "\"} "
+                + cumulative);
+      }
+      cumulative += buckets[N_BUCKETS].sum();
+      out.println(name + "_bucket{le=\"+Inf\"} " + cumulative);
+      out.println(name + "_sum " + format(seconds(getSum())));
+      out.println(name + "_count " + cumulative);
+    }
+
+    void writeJson(PrintWriter out) {
+      out.print("\"count\": " + getCount() + ", \"sum\": "
+              + format(seconds(getSum())) + ", \"buckets\": [");
+      for (int i = 0; i <= N_BUCKETS; i++) {
+        out.print(i > 0 ? ", " : "");
+        out.print("{\"le\": "
+                + (i < N_BUCKETS ? format(bound(i)) : "\"+Inf\"")
+                + ", \"count\": " + buckets[i].sum() + "}");
+      }
+      out.print("]");
+    }
+  }
+
+  /**
+   * Given number of slowest events, each identified by a label, such as path
+   * of an input file. Exported as a gauge with one sample per event.
+   */
+  static class Slowest extends Metric {
+    private final String label;
+    private final int size;
+    private final PriorityQueue<Object[]> queue;
+
+    Slowest(String name, String help, String label, int size) {
+      super(name, help);
+      this.label = label;
+      this.size = size;
+      queue = new PriorityQueue<Object[]>(size + 1, ORDER);
+    }
+
+    private static final Comparator<Object[]> ORDER =
+            new Comparator<Object[]>() {
+              public int compare(Object[] e1, Object[] e2) {
+                return ((Long) e1[1]).compareTo((Long) e2[1]);
+              }
+            };
+
+    public synchronized void record(String id, long nanos) {
+      if (queue.size() == size && nanos <= (Long) queue.peek()[1])
+        return;
+      queue.add(new Object[] { id, nanos });
+      if (queue.size() > size)
+        queue.poll();
+    }
+
+    /**
+     * Get recorded events, slowest first.
+     */
+    private synchronized List<Object[]> entries() {
+      List<Object[]> list = new ArrayList<Object[]>(queue);
+      Collections.sort(list, Collections.reverseOrder(ORDER));
+      return list;
+    }
+
+    String type() {
+      return "gauge";
+    }
+
+    void writePrometheus(PrintWriter out) {
+      for (Object[] entry : entries())
+        out.println(name + "{" + label + "=\"" + escape((String) entry[0])
+                + "\"} " + format(seconds((Long) entry[1])));
+    }
+
+    void writeJson(PrintWriter out) {
+      out.print("\"values\": [");
+      boolean first = true;
+      for (Object[] entry : entries()) {
+        out.print(first ? "" : ", ");
+        out.print("{\"" + label + "\": \"" + escape((String) entry[0])
+                + "\", \"value\": " + format(seconds((Long) entry[1])) + "}");
+        first = false;
+      }
+      out.print("]");
+    }
+  }
+
+  /**
+   * Peak heap usage, summed over all heap memory pools.
+   */
+  private static class HeapPeak extends Metric {
+    HeapPeak() {
+      super("heap_peak_bytes", "Peak heap usage in bytes");
+    }
+
+    private long get() {
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+          peak += pool.getPeakUsage().getUsed();
+      return peak;
+    }
+
+    String type() {
+      return "gauge";
+    }
+
+    void writePrometheus(PrintWriter out) {
+      out.println(name + " " + get());
+    }
+
+    void writeJson(PrintWriter out) {
+      out.print("\"value\": " + get());
+    }
+  }
+
+  static {
+    register(new HeapPeak());
+  }
+
+  private static synchronized <T extends Metric> T register(T metric) {
+    if (registry.containsKey(metric.name))
+      throw new IllegalStateException("metric " + metric.name
+              + " already registered");
+    registry.put(metric.name, metric);
+    return metric;
+  }
+
+  /**
+   * Register a counter.
+   *
+   * @param name
+   *          name of the counter, without common prefix
+   */
+  public static Counter counter(String name, String help) {
+    return register(new Counter(name, help));
+  }
+
+  /**
+   * Register a histogram of durations.
+   *
+   * @param name
+   *          name of the histogram, without common prefix
+   */
+  public static Timer timer(String name, String help) {
+    return register(new Timer(name, help));
+  }
+
+  /**
+   * Register a list of slowest events.
+   *
+   * @param name
+   *          name of the list, without common prefix
+   * @param label
+   *          name of label identifying events
+   * @param size
+   *          number of events kept
+   */
+  public static Slowest slowest(String name, String help, String label,
+          int size) {
+    return register(new Slowest(name, help, label, size));
+  }
+
+  private static synchronized List<Metric> metrics() {
+    return new ArrayList<Metric>(registry.values());
+  }
+
+  static double seconds(long nanos) {
+    return nanos / 1e9;
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.6f", value);
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"")
+            .replace("\n", "\\n");
+  }
+
+  /**
+   * Write all metrics in Prometheus text exposition format.
+   */
+  public static void writePrometheus(Writer writer) {
+    PrintWriter out = new PrintWriter(writer);
+    for (Metric metric : metrics()) {
+      out.println("# HELP " + metric.name + " " + metric.help);
+      out.println("# TYPE " + metric.name + " " + metric.type());
+      metric.writePrometheus(out);
+    }
+    out.flush();
+  }
+
+  /**
+   * Write all metrics as a JSON object, with one member for each metric.
+   */
+  public static void writeJson(Writer writer) {
+    PrintWriter out = new PrintWriter(writer);
+    out.println("{");
+    List<Metric> metrics = metrics();
+    for (int i = 0; i < metrics.size(); i++) {
+      Metric metric = metrics.get(i);
+      out.print("  \"" + metric.name + "\": {\"type\": \"" + metric.type()
+              + "\", \"help\": \"" + escape(metric.help) + "\", ");
+      metric.writeJson(out);
+      out.println(i + 1 < metrics.size() ? "}," : "}");
+    }
+    out.println("}");
+    out.flush();
+  }
+
+  /**
+   * Write all metrics to given file, as JSON if file name ends with
+   * {@code .json} and in Prometheus text format otherwise.
+   */
+  public static void write(File f) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+    try {
+      if (f.getName().endsWith(".json"))
+        writeJson(writer);
+      else
+        writePrometheus(writer);
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled pattern matching package or class names.
+ * <p>
+ * In patterns asterisks match any sequence of characters. In class name
+ * patterns also dots match only themselves and question marks match any
+ * single character. All other characters have their usual regular expression
+ * meaning.
+ * <p>
+ * Patterns are analyzed so that they can be looked up in a sorted index of
+ * names: every name matching a pattern starts with its literal prefix, which
+ * limits lookup to a range of the index. Patterns consisting of literal prefix
+ * only are looked up exactly, patterns consisting of literal prefix followed
+ * by a single asterisk match the whole range. Only other patterns need to be
+ * matched against names, which is done with a regular expression compiled
+ * once.
+ *
+ * @author Mikolaj Izdebski
+ */
+class NamePattern {
+  private static final String SPECIAL = "\\[](){}|^$*+?.";
+  private static final String QUANTIFIERS = "{+?";
+
+  private final String pattern;
+  private final String prefix;
+  private final boolean exact;
+  private final boolean prefixOnly;
+  private final Matcher matcher;
+
+  /**
+   * Compile pattern.
+   *
+   * @param pattern
+   *          the pattern
+   * @param classes
+   *          whether the pattern matches class names, in which dots match
+   *          only themselves and question marks match any single character
+   */
+  public NamePattern(String pattern, boolean classes) {
+    this.pattern = pattern;
+
+    int n = 0;
+    while (n < pattern.length() && !is_special(pattern.charAt(n), classes))
+      n++;
+    int len = n;
+    // Quantifier applies to the last character of prefix.
+    if (len < pattern.length() && len > 0
+            && QUANTIFIERS.indexOf(pattern.charAt(len)) >= 0
+            && !(classes && pattern.charAt(len) == '?'))
+      len--;
+    // Alternatives don't share any prefix.
+    if (pattern.indexOf('|') >= 0)
+      len = 0;
+    prefix = pattern.substring(0, len);
+
+    exact = n == pattern.length();
+    prefixOnly = len == n && n == pattern.length() - 1
+            && pattern.charAt(n) == '*';
+
+    String regex = pattern;
+    if (classes) {
+      regex = regex.replaceAll("\\.", "\\\\.");
+      regex = regex.replaceAll("\\?", ".");
+    }
+    regex = regex.replaceAll("\\*", ".*");
+    matcher = Pattern.compile("^(" + regex + ")$").matcher("");
+  }
+
+  private static boolean is_special(char c, boolean classes) {
+    return SPECIAL.indexOf(c) >= 0 && !(classes && c == '.');
+  }
+
+  @Override
+  public String toString() {
+    return pattern;
+  }
+
+  /**
+   * Get literal prefix, which all names matching this pattern start with.
+   */
+  public String getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * Whether this pattern matches only the name equal to its prefix.
+   */
+  public boolean isExact() {
+    return exact;
+  }
+
+  /**
+   * Whether this pattern matches all names starting with its prefix.
+   */
+  public boolean isPrefix() {
+    return prefixOnly;
+  }
+
+  /**
+   * Match given name against this pattern. Not thread-safe.
+   */
+  public boolean matches(String name) {
+    if (exact)
+      return name.equals(pattern);
+    if (prefixOnly)
+      return name.startsWith(prefix);
+    return matcher.reset(name).matches();
+  }
+
+  /**
+   * Get the least string greater than all strings starting with given prefix,
+   * or {@code null} if there is no such string.
+   */
+  static String successor(String prefix) {
+    int n = prefix.length();
+    while (n > 0 && prefix.charAt(n - 1) == Character.MAX_VALUE)
+      n--;
+    if (n == 0)
+      return null;
+    return prefix.substring(0, n - 1) + (char) (prefix.charAt(n - 1) + 1);
+  }
+}
@@ -0,0 +1,229 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Directed graph of packages identified by their ids, with edges stored as
+ * rows of an {@link IntTable}. Used for queries which follow dependencies
+ * transitively.
+ * <p>
+ * Transitive closure is computed breadth-first one level at a time. Levels
+ * wider than a threshold are expanded in parallel on the common fork-join
+ * pool, with nodes claimed atomically so that each one is expanded once.
+ *
+ * @author Mikolaj Izdebski
+ */
+class PackageGraph {
+  // Minimal number of nodes of a level, which is worth splitting between
+  // threads.
+  private static final int PARALLEL_THRESHOLD = 256;
+
+  private final IntTable edges;
+  private final int nNodes;
+  // Graph with all edges reversed (built on demand).
+  private PackageGraph reverse;
+
+  /**
+   * Create graph in which row {@code n} of given table lists successors of
+   * node {@code n}.
+   */
+  public PackageGraph(IntTable edges) {
+    this.edges = edges;
+    this.nNodes = edges.size();
+  }
+
+  /**
+   * Create graph with union of edges of given tables, which must have the
+   * same number of rows.
+   */
+  static PackageGraph union(IntTable first, IntTable second) {
+    int n = first.size();
+    IntTable edges = new IntTable(n, first.length() + second.length());
+    IntList row = new IntList();
+    for (int i = 0; i < n; i++) {
+      row.clear();
+      row.addRow(first, i);
+      row.addRow(second, i);
+      row.sortUnique();
+      edges.add(row);
+    }
+    edges.trim();
+    return new PackageGraph(edges);
+  }
+
+  public int size() {
+    return nNodes;
+  }
+
+  /**
+   * Get graph with all edges reversed.
+   */
+  public synchronized PackageGraph reverse() {
+    if (reverse == null) {
+      reverse = new PackageGraph(edges.invert(nNodes));
+      reverse.reverse = this;
+    }
+    return reverse;
+  }
+
+  /**
+   * Get sorted ids of nodes reachable from any of given nodes by following at
+   * least one edge. Given nodes are included only if they lie on a cycle or
+   * are reachable from other given nodes.
+   */
+  public IntList closure(IntList roots) {
+    AtomicIntegerArray visited = new AtomicIntegerArray(nNodes);
+    int[] level = roots.toArray();
+    while (level.length > 0) {
+      IntList next;
+      if (level.length < PARALLEL_THRESHOLD)
+        next = expand(visited, level, 0, level.length);
+      else
+        next = ForkJoinPool.commonPool().invoke(
+                new Expansion(visited, level, 0, level.length));
+      level = next.toArray();
+    }
+
+    IntList result = new IntList();
+    for (int n = 0; n < nNodes; n++)
+      if (visited.get(n) != 0)
+        result.add(n);
+    return result;
+  }
+
+  /**
+   * Claim unvisited successors of nodes of given level.
+   */
+  private IntList expand(AtomicIntegerArray visited, int[] level, int from,
+          int to) {
+    IntList next = new IntList();
+    for (int i = from; i < to; i++) {
+      int n = level[i];
+      for (int k = edges.start(n); k < edges.end(n); k++) {
+        int m = edges.get(k);
+        if (visited.get(m) == 0 && visited.compareAndSet(m, 0, 1))
+          next.add(m);
+      }
+    }
+    return next;
+  }
+
+  private class Expansion extends RecursiveTask<IntList> {
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicIntegerArray visited;
+    private final int[] level;
+    private final int from;
+    private final int to;
+
+    Expansion(AtomicIntegerArray visited, int[] level, int from, int to) {
+      this.visited = visited;
+      this.level = level;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected IntList compute() {
+      if (to - from <= PARALLEL_THRESHOLD)
+        return expand(visited, level, from, to);
+      int mid = (from + to) >>> 1;
+      Expansion left = new Expansion(visited, level, from, mid);
+      left.fork();
+      IntList next = new Expansion(visited, level, mid, to).compute();
+      IntList first = left.join();
+      first.addAll(next.array(), 0, next.size());
+      return first;
+    }
+  }
+
+  /**
+   * Find cycles, that is strongly connected components consisting of more
+   * than one node. Edges from nodes to themselves are ignored.
+   * <p>
+   * Uses Tarjan's algorithm with an explicit stack, so that long dependency
+   * chains don't overflow the call stack.
+   *
+   * @return sorted node ids of each cycle
+   */
+  public List<int[]> cycles() {
+    List<int[]> cycles = new ArrayList<int[]>();
+    int[] index = new int[nNodes];
+    int[] lowlink = new int[nNodes];
+    boolean[] onStack = new boolean[nNodes];
+    Arrays.fill(index, -1);
+    int[] stack = new int[nNodes];
+    int sp = 0;
+    // Call stack of the depth-first search: nodes and positions of their next
+    // edges.
+    int[] nodes = new int[nNodes];
+    int[] positions = new int[nNodes];
+    int nextIndex = 0;
+
+    for (int root = 0; root < nNodes; root++) {
+      if (index[root] >= 0)
+        continue;
+      int depth = 0;
+      nodes[0] = root;
+      positions[0] = edges.start(root);
+      index[root] = lowlink[root] = nextIndex++;
+      stack[sp++] = root;
+      onStack[root] = true;
+
+      while (depth >= 0) {
+        int n = nodes[depth];
+        if (positions[depth] < edges.end(n)) {
+          int m = edges.get(positions[depth]++);
+          if (index[m] < 0) {
+            index[m] = lowlink[m] = nextIndex++;
+            stack[sp++] = m;
+            onStack[m] = true;
+            depth++;
+            nodes[depth] = m;
+            positions[depth] = edges.start(m);
+          } else if (onStack[m]) {
+            lowlink[n] = Math.min(lowlink[n], index[m]);
+          }
+          continue;
+        }
+
+        if (lowlink[n] == index[n]) {
+          int start = sp;
+          do
+            onStack[stack[--start]] = false;
+          while (stack[start] != n);
+          if (sp - start > 1) {
+            int[] cycle = Arrays.copyOfRange(stack, start, sp);
+            Arrays.sort(cycle);
+            cycles.add(cycle);
+          }
+          sp = start;
+        }
+        depth--;
+        if (depth >= 0)
+          lowlink[nodes[depth]] = Math.min(lowlink[nodes[depth]], lowlink[n]);
+      }
+    }
+    return cycles;
+  }
+}
@@ -0,0 +1,499 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Temporary storage of packages read during database build, which keeps only a
+ * bounded amount of them in memory.
+ * <p>
+ * Added packages are buffered in serialized form. Whenever the buffer exceeds
+ * its budget, it is sorted by package name and written to a temporary file as
+ * a run, together with sorted names of all packages, classes, references and
+ * capabilities occurring in it. When all packages are added, runs are merged:
+ * names into a {@link FrontCodedDictionary}, which becomes the symbol table of
+ * the database, and packages into a stream ordered by their names, in which
+ * only the package read from the input file with the highest index is kept
+ * for each name.
+ * <p>
+ * Run file layout: for every package a true boolean, name, input index, length
+ * of serialized body and the body; a false boolean ends the run. Body is the
+ * number of classes followed by name of each class, the number of classes it
+ * references and their names, and then capabilities required and provided by
+ * the package, each as their number followed by their names. Name runs are
+ * the number of names followed by the names.
+ *
+ * @author Mikolaj Izdebski
+ */
+class PackageSpill implements Closeable {
+  private static final int BUFFER_SIZE = 16384;
+  // Estimated heap overhead of each buffered package and name.
+  private static final int PACKAGE_OVERHEAD = 96;
+  private static final int NAME_OVERHEAD = 64;
+
+  private static final Metrics.Counter RUNS = Metrics.counter(
+          "build_spill_runs_total", "Runs of packages spilled to disk");
+  private static final Metrics.Counter SPILLED_BYTES = Metrics.counter(
+          "build_spill_bytes_total", "Bytes of packages spilled to disk");
+
+  private final File dir;
+  private final long budget;
+  private final List<File> files = new ArrayList<File>();
+  private final List<File> runs = new ArrayList<File>();
+  private final List<File> nameRuns = new ArrayList<File>();
+
+  private final List<Entry> buffer = new ArrayList<Entry>();
+  private final Set<String> names = new HashSet<String>();
+  private long buffered;
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+  /**
+   * @param dir
+   *          directory to create temporary files in
+   * @param budget
+   *          number of bytes of heap which buffered packages may take
+   */
+  public PackageSpill(File dir, long budget) {
+    this.dir = dir;
+    this.budget = budget;
+  }
+
+  private static class Entry {
+    final String name;
+    final int index;
+    final byte[] body;
+
+    Entry(String name, int index, byte[] body) {
+      this.name = name;
+      this.index = index;
+      this.body = body;
+    }
+  }
+
+  private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      int cmp = e1.name.compareTo(e2.name);
+      if (cmp != 0)
+        return cmp;
+      return e1.index < e2.index ? -1 : e1.index == e2.index ? 0 : 1;
+    }
+  };
+
+  private void add_name(String name) {
+    if (names.add(name))
+      buffered += NAME_OVERHEAD + 2 * name.length();
+  }
+
+  /**
+   * Add package.
+   * 
+   * @param name
+   *          name of the package
+   * @param index
+   *          index of input file the package was read from
+   * @param classes
+   *          sorted names of classes contained in the package
+   * @param references
+   *          names of classes referenced by each class
+   * @param requires
+   *          capabilities required by the package
+   * @param provides
+   *          capabilities provided by the package
+   */
+  public void add(String name, int index, List<String> classes,
+          List<? extends Collection<String>> references,
+          Collection<String> requires, Collection<String> provides)
+          throws IOException {
+    body.reset();
+    DataOutputStream os = new DataOutputStream(body);
+    add_name(name);
+    os.writeInt(classes.size());
+    for (int i = 0; i < classes.size(); i++) {
+      os.writeUTF(classes.get(i));
+      add_name(classes.get(i));
+      Collection<String> refs = references.get(i);
+      os.writeInt(refs.size());
+      for (String ref : refs) {
+        os.writeUTF(ref);
+        add_name(ref);
+      }
+    }
+    write_names(os, requires);
+    write_names(os, provides);
+    os.flush();
+
+    buffer.add(new Entry(name, index, body.toByteArray()));
+    buffered += PACKAGE_OVERHEAD + 2 * name.length() + body.size();
+    if (buffered > budget)
+      spill();
+  }
+
+  private void write_names(DataOutputStream os, Collection<String> names)
+          throws IOException {
+    os.writeInt(names.size());
+    for (String name : names) {
+      os.writeUTF(name);
+      add_name(name);
+    }
+  }
+
+  private File temp_file() throws IOException {
+    File f = File.createTempFile(".java-deptools-spill", ".tmp", dir);
+    files.add(f);
+    return f;
+  }
+
+  private static DataOutputStream output(File f) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(f), BUFFER_SIZE));
+  }
+
+  private static DataInputStream input(File f) throws IOException {
+    return new DataInputStream(new BufferedInputStream(new FileInputStream(f),
+            BUFFER_SIZE));
+  }
+
+  /**
+   * Write buffered packages and names to disk as new runs.
+   */
+  private void spill() throws IOException {
+    if (buffer.isEmpty())
+      return;
+    Collections.sort(buffer, ORDER);
+    File run = temp_file();
+    DataOutputStream os = output(run);
+    try {
+      for (Entry entry : buffer) {
+        os.writeBoolean(true);
+        os.writeUTF(entry.name);
+        os.writeInt(entry.index);
+        os.writeInt(entry.body.length);
+        os.write(entry.body);
+      }
+      os.writeBoolean(false);
+    } finally {
+      os.close();
+    }
+    runs.add(run);
+
+    String[] sorted = names.toArray(new String[names.size()]);
+    Arrays.sort(sorted);
+    File nameRun = temp_file();
+    os = output(nameRun);
+    try {
+      os.writeInt(sorted.length);
+      for (String name : sorted)
+        os.writeUTF(name);
+    } finally {
+      os.close();
+    }
+    nameRuns.add(nameRun);
+
+    RUNS.increment();
+    SPILLED_BYTES.add(run.length() + nameRun.length());
+    System.err.println("Spilled " + buffer.size() + " packages to disk.");
+    buffer.clear();
+    names.clear();
+    buffered = 0;
+  }
+
+  /**
+   * Merge runs of names.
+   * 
+   * @return encoded dictionary of all distinct names of packages, classes and
+   *         references
+   */
+  public byte[] merge_names() throws IOException {
+    spill();
+    final List<DataInputStream> inputs = new ArrayList<DataInputStream>();
+    final List<String> heads = new ArrayList<String>();
+    final int[] remaining = new int[nameRuns.size()];
+    PriorityQueue<Integer> queue = new PriorityQueue<Integer>(Math.max(1,
+            nameRuns.size()), new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i1, Integer i2) {
+        return heads.get(i1).compareTo(heads.get(i2));
+      }
+    });
+
+    FrontCodedDictionary.Encoder encoder = new FrontCodedDictionary.Encoder();
+    try {
+      for (int i = 0; i < nameRuns.size(); i++) {
+        DataInputStream is = input(nameRuns.get(i));
+        inputs.add(is);
+        remaining[i] = is.readInt();
+        heads.add(null);
+        if (remaining[i]-- > 0) {
+          heads.set(i, is.readUTF());
+          queue.add(i);
+        }
+      }
+
+      String last = null;
+      while (!queue.isEmpty()) {
+        int i = queue.poll();
+        String name = heads.get(i);
+        if (last == null || !last.equals(name))
+          encoder.add(name);
+        last = name;
+        if (remaining[i]-- > 0) {
+          heads.set(i, inputs.get(i).readUTF());
+          queue.add(i);
+        }
+      }
+    } finally {
+      for (DataInputStream is : inputs)
+        is.close();
+    }
+    return encoder.toByteArray();
+  }
+
+  /**
+   * A package read back from runs.
+   */
+  static class Package {
+    private final String name;
+    private final String[] classes;
+    private final String[][] references;
+    private final String[] requires;
+    private final String[] provides;
+
+    Package(String name, byte[] body) throws IOException {
+      this.name = name;
+      DataInputStream is = new DataInputStream(new ByteArrayInputStream(body));
+      classes = new String[is.readInt()];
+      references = new String[classes.length][];
+      for (int i = 0; i < classes.length; i++) {
+        classes[i] = is.readUTF();
+        references[i] = new String[is.readInt()];
+        for (int j = 0; j < references[i].length; j++)
+          references[i][j] = is.readUTF();
+      }
+      requires = read_names(is);
+      provides = read_names(is);
+    }
+
+    private static String[] read_names(DataInputStream is) throws IOException {
+      String[] names = new String[is.readInt()];
+      for (int i = 0; i < names.length; i++)
+        names[i] = is.readUTF();
+      return names;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String[] getClasses() {
+      return classes;
+    }
+
+    /**
+     * Get names of classes referenced by each class.
+     */
+    public String[][] getReferences() {
+      return references;
+    }
+
+    public String[] getRequires() {
+      return requires;
+    }
+
+    public String[] getProvides() {
+      return provides;
+    }
+  }
+
+  private static class RunReader {
+    private final DataInputStream is;
+    Entry head;
+
+    RunReader(File f) throws IOException {
+      is = input(f);
+    }
+
+    boolean next() throws IOException {
+      if (!is.readBoolean()) {
+        head = null;
+        return false;
+      }
+      String name = is.readUTF();
+      int index = is.readInt();
+      byte[] body = new byte[is.readInt()];
+      is.readFully(body);
+      head = new Entry(name, index, body);
+      return true;
+    }
+  }
+
+  /**
+   * Iterator over merged packages in order of their names.
+   */
+  class Merger implements Closeable {
+    private final List<RunReader> readers = new ArrayList<RunReader>();
+    private final PriorityQueue<RunReader> queue;
+
+    Merger() throws IOException {
+      spill();
+      queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()),
+              new Comparator<RunReader>() {
+                @Override
+                public int compare(RunReader r1, RunReader r2) {
+                  return ORDER.compare(r1.head, r2.head);
+                }
+              });
+      try {
+        for (File run : runs) {
+          RunReader reader = new RunReader(run);
+          readers.add(reader);
+          if (reader.next())
+            queue.add(reader);
+        }
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    /**
+     * Get next package, or {@code null} if there are no more packages. Of
+     * packages with the same name, the one read from input file with the
+     * highest index is returned.
+     */
+    public Package next() throws IOException {
+      Entry best = null;
+      while (!queue.isEmpty()
+              && (best == null || queue.peek().head.name.equals(best.name))) {
+        RunReader reader = queue.poll();
+        best = reader.head;
+        if (reader.next())
+          queue.add(reader);
+      }
+      return best != null ? new Package(best.name, best.body) : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (RunReader reader : readers)
+        reader.is.close();
+    }
+  }
+
+  /**
+   * Start merging runs of packages.
+   */
+  public Merger merge() throws IOException {
+    return new Merger();
+  }
+
+  /**
+   * Delete all temporary files.
+   */
+  @Override
+  public void close() {
+    for (File f : files)
+      f.delete();
+    files.clear();
+  }
+
+  /**
+   * Writer of {@link IntTable} stored in temporary files instead of memory.
+   * Finished table is memory-mapped.
+   */
+  class TableWriter {
+    private final IntFile offsets;
+    private final IntFile data;
+    private int length;
+
+    TableWriter() throws IOException {
+      offsets = new IntFile(temp_file());
+      data = new IntFile(temp_file());
+      offsets.add(0);
+    }
+
+    public void add(IntList row) throws IOException {
+      for (int i = 0; i < row.size(); i++)
+        data.add(row.get(i));
+      length += row.size();
+      offsets.add(length);
+    }
+
+    public IntTable finish() throws IOException {
+      return new IntTable(offsets.finish(), data.finish());
+    }
+  }
+
+  private static class IntFile {
+    private final File file;
+    private final FileOutputStream os;
+    private final ByteBuffer staging = ByteBuffer.allocate(BUFFER_SIZE).order(
+            ByteOrder.LITTLE_ENDIAN);
+
+    IntFile(File file) throws IOException {
+      this.file = file;
+      os = new FileOutputStream(file);
+    }
+
+    void add(int value) throws IOException {
+      if (!staging.hasRemaining())
+        flush();
+      staging.putInt(value);
+    }
+
+    private void flush() throws IOException {
+      os.write(staging.array(), 0, staging.position());
+      staging.clear();
+    }
+
+    IntBuffer finish() throws IOException {
+      flush();
+      os.close();
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                raf.length()).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+      } finally {
+        raf.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Runner of many queries read from a stream, one query per line, against a
+ * database loaded once.
+ * <p>
+ * Each line consists of query options and arguments, separated with
+ * whitespace, as they would be given on the command line, for example
+ * {@code --requires maven-*} or {@code -Q -a junit}. Empty lines and lines
+ * starting with {@code #} are ignored.
+ * <p>
+ * Queries are run in parallel, but their results are written in the order
+ * of input lines, as soon as all preceding results are written. Errors are
+ * reported to standard error and don't stop processing of the following
+ * queries.
+ * 
+ * @author Mikolaj Izdebski
+ */
+class QueryBatch {
+  private static final int N_THREAD = Runtime.getRuntime()
+          .availableProcessors();
+  // How many queries can be run ahead of the first one whose result wasn't
+  // written yet.
+  private static final int WINDOW_PER_THREAD = 4;
+
+  /**
+   * Result of a single query: its output or error message.
+   */
+  private static class Result {
+    private final byte[] output;
+    private final boolean failed;
+    private final String error;
+
+    Result(byte[] output, boolean failed, String error) {
+      this.output = output;
+      this.failed = failed;
+      this.error = error;
+    }
+  }
+
+  private final Database db;
+  // Format of results of queries which don't specify one.
+  private final String format;
+  private int nFailed;
+
+  public QueryBatch(Database db, String format) {
+    this.db = db;
+    this.format = format;
+  }
+
+  /**
+   * Run all queries read from given reader.
+   * 
+   * @return number of queries which failed
+   */
+  public int run(BufferedReader in, PrintStream out) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(N_THREAD);
+    try {
+      Deque<Future<Result>> pending = new ArrayDeque<Future<Result>>();
+      Deque<Integer> lineNumbers = new ArrayDeque<Integer>();
+      int lineNumber = 0;
+      String line;
+      while ((line = in.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#"))
+          continue;
+        if (pending.size() >= WINDOW_PER_THREAD * N_THREAD)
+          write(pending.removeFirst(), lineNumbers.removeFirst(), out);
+        pending.addLast(executor.submit(task(line.split("\\s+"))));
+        lineNumbers.addLast(lineNumber);
+      }
+      while (!pending.isEmpty())
+        write(pending.removeFirst(), lineNumbers.removeFirst(), out);
+      out.flush();
+      return nFailed;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void write(Future<Result> future, int lineNumber, PrintStream out) {
+    Result result;
+    try {
+      result = future.get();
+    } catch (ExecutionException e) {
+      // Unexpected errors, unlike query exceptions, don't leave any output.
+      result = new Result(new byte[0], true, String.valueOf(e.getCause()));
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    out.write(result.output, 0, result.output.length);
+    if (result.failed) {
+      nFailed++;
+      out.flush();
+      System.err.println("Query on line " + lineNumber + " failed"
+              + (result.error != null ? ": " + result.error : "."));
+    }
+  }
+
+  private Callable<Result> task(final String[] tokens) {
+    return new Callable<Result>() {
+      public Result call() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+          run_query(tokens, bos);
+        } catch (QueryException e) {
+          return new Result(bos.toByteArray(), true, e.getMessage());
+        }
+        return new Result(bos.toByteArray(), false, null);
+      }
+    };
+  }
+
+  private void run_query(String[] tokens, OutputStream os)
+          throws IOException, QueryException {
+    CommandLine line;
+    try {
+      line = new GnuParser().parse(QueryRunner.options(), tokens);
+    } catch (ParseException e) {
+      throw new QueryException(e.getMessage());
+    }
+
+    String query = null;
+    for (String name : QueryRunner.QUERIES) {
+      if (!line.hasOption(name))
+        continue;
+      if (query != null)
+        throw new QueryException("More than one query specified.");
+      query = name;
+    }
+    if (query == null)
+      throw new QueryException("No query specified.");
+
+    String[] args = line.getArgs();
+    for (String arg : args)
+      if (Database.is_local_package(arg))
+        throw new QueryException("Local files can't be queried in batch mode: "
+                + arg);
+    ResultWriter out = ResultWriter.create(line.getOptionValue("format",
+            format), os);
+    try {
+      QueryRunner.run_query(db, query, args, line.hasOption("recursive"),
+              line.hasOption("alternatives"), out);
+    } finally {
+      out.finish();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Client sending queries to {@link QueryServer}.
+ * 
+ * @author Mikolaj Izdebski
+ */
+class QueryClient {
+  private final int port;
+
+  public QueryClient(int port) {
+    this.port = port;
+  }
+
+  private static String encode(String s) throws IOException {
+    return URLEncoder.encode(s, "UTF-8");
+  }
+
+  /**
+   * Send query to the server and copy results to standard output.
+   * 
+   * @throws QueryException
+   *           if the server reports the query can't be answered
+   */
+  public void query(String query, String[] args, boolean recursive,
+          boolean alternatives, String format) throws IOException,
+          QueryException {
+    StringBuilder url = new StringBuilder("http://127.0.0.1:" + port
+            + "/query?q=" + encode(query));
+    for (String arg : args)
+      url.append("&arg=").append(encode(arg));
+    if (recursive)
+      url.append("&recursive");
+    if (alternatives)
+      url.append("&alternatives");
+    if (format != null)
+      url.append("&format=").append(encode(format));
+
+    HttpURLConnection conn = (HttpURLConnection) new URL(url.toString())
+            .openConnection();
+    try {
+      int status = conn.getResponseCode();
+      InputStream is = status == 200 ? conn.getInputStream() : conn
+              .getErrorStream();
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      if (is != null) {
+        byte[] buf = new byte[65536];
+        int r;
+        while ((r = is.read(buf)) >= 0)
+          bos.write(buf, 0, r);
+        is.close();
+      }
+      String body = bos.toString("UTF-8");
+
+      if (status != 200)
+        throw new QueryException(body.isEmpty() ? null : body.trim());
+      System.out.print(body);
+      System.out.flush();
+    } finally {
+      conn.disconnect();
+    }
+  }
+}
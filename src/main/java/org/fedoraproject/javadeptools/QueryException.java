@@ -0,0 +1,30 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+/**
+ * Exception thrown when a query can't be answered, for example because given
+ * pattern doesn't match any package.
+ * 
+ * @author Mikolaj Izdebski
+ */
+class QueryException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  public QueryException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,150 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.IOException;
+
+import org.apache.commons.cli.Options;
+
+/**
+ * Dispatcher of queries to database, shared by command line, server and batch
+ * modes, together with definitions of options selecting queries and their
+ * parameters.
+ * 
+ * @author Mikolaj Izdebski
+ */
+class QueryRunner {
+  private static final Metrics.Counter QUERIES_RUN = Metrics.counter(
+          "queries_total", "Queries run");
+  private static final Metrics.Counter QUERIES_FAILED = Metrics.counter(
+          "query_errors_total", "Queries which failed");
+  private static final Metrics.Timer QUERY_TIME = Metrics.timer(
+          "query_seconds",
+          "Time spent executing a query, including preparation of database done on demand");
+
+  /**
+   * Long names of options selecting queries.
+   */
+  static final String[] QUERIES = { "requires", "what-requires", "provides",
+      "what-provides", "list", "why", "diff", "cycles" };
+
+  // Options which can be given in batch queries.
+  private static Options options = new Options();
+  static {
+    add_options(options);
+  }
+
+  /**
+   * Add options selecting queries and their parameters to given options.
+   */
+  static void add_options(Options options) {
+    options.addOption(
+            "p",
+            "provides",
+            false,
+            "print a set of classes provided by given Fedora package, RPM package or JAR file");
+    options.addOption("P", "what-provides", false,
+            "print a set of Fedora packages that provide the specified Java class");
+    options.addOption(
+            "q",
+            "requires",
+            false,
+            "print print a set of Fedora packages required by given Fedora package, RPM package or JAR file");
+    options.addOption("Q", "what-requires", false,
+            "print print a set of Fedora packages that require given Fedora package");
+    options.addOption(
+            "d",
+            "diff",
+            false,
+            "show differences between real and declared Fedora or RPM package requirements");
+    options.addOption("a", "alternatives", false,
+            "with --what-requires, also print packages which can use given package as one of alternatives");
+    options.addOption("r", "recursive", false,
+            "with --requires or --what-requires, follow dependencies transitively (with --alternatives, also through sets of alternatives)");
+    options.addOption("cycles", false,
+            "print groups of packages which require each other, optionally only those including given packages (with --alternatives, also through sets of alternatives)");
+    options.addOption("f", "format", true,
+            "print query results in given format: text (default), jsonl (JSON object on each line), tsv (tab-separated name and value on each line) or dot (Graphviz graph)");
+    options.addOption("w", "why", false,
+            "explain why specified packages require given other package");
+    options.addOption("list", false, "list all indexed packages");
+  }
+
+  /**
+   * Get options which can be given in batch queries.
+   */
+  static Options options() {
+    return options;
+  }
+
+  /**
+   * Run query on given database.
+   * 
+   * @param query
+   *          long name of option selecting the query
+   * @param args
+   *          query arguments
+   * @param recursive
+   *          whether dependencies are followed transitively
+   * @param alternatives
+   *          whether alternative dependencies are included in results
+   * @param out
+   *          the writer to write query results to
+   */
+  static void run_query(Database db, String query, String[] args,
+          boolean recursive, boolean alternatives, ResultWriter out)
+          throws IOException, QueryException {
+    QUERIES_RUN.increment();
+    long start = QUERY_TIME.start();
+    boolean ok = false;
+    try {
+      run_query_unmetered(db, query, args, recursive, alternatives, out);
+      ok = true;
+    } finally {
+      QUERY_TIME.stop(start);
+      if (!ok)
+        QUERIES_FAILED.increment();
+    }
+  }
+
+  private static void run_query_unmetered(Database db, String query,
+          String[] args, boolean recursive, boolean alternatives,
+          ResultWriter out) throws IOException, QueryException {
+    if (args.length == 0 && !query.equals("list") && !query.equals("cycles"))
+      throw new QueryException("Missing argument.");
+
+    if (query.equals("requires"))
+      db.query_requires(out, args, recursive, alternatives);
+    else if (query.equals("what-requires"))
+      db.query_what_requires(out, args, recursive, alternatives);
+    else if (query.equals("provides"))
+      db.query_provides(out, args[0]);
+    else if (query.equals("what-provides"))
+      db.query_what_provides(out, args[0]);
+    else if (query.equals("list"))
+      db.list_packages(out);
+    else if (query.equals("cycles"))
+      db.query_cycles(out, args, alternatives);
+    else if (query.equals("diff"))
+      db.query_diff(out, args);
+    else if (query.equals("why")) {
+      if (args.length < 2)
+        throw new QueryException("Option --why requires two arguments.");
+      db.query_why(out, args[0], args[1]);
+    } else
+      throw new QueryException("Query --" + query + " is not supported.");
+  }
+}
@@ -0,0 +1,204 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Server answering queries over HTTP on loopback interface, so that database
+ * is loaded once instead of for every query.
+ * <p>
+ * Queries are sent as {@code GET /query?q=QUERY&arg=ARG...}, where QUERY is
+ * the long name of command line option selecting the query, optionally
+ * followed by {@code &recursive}, {@code &alternatives} and
+ * {@code &format=FORMAT}. Results are returned in given format (see
+ * {@link ResultWriter}) with status 200, errors as UTF-8 text with their
+ * message with status 400. Queries are served concurrently.
+ * <p>
+ * Database file is checked for changes every few seconds. New version is
+ * loaded in the background and then swapped in; queries which are already
+ * running are finished using the previous version.
+ * <p>
+ * Metrics of the server are available at {@code /metrics} in Prometheus text
+ * format.
+ * 
+ * @author Mikolaj Izdebski
+ * @see QueryClient
+ */
+class QueryServer {
+  private static final long POLL_INTERVAL = 2000;
+  private static final int N_THREAD = Runtime.getRuntime()
+          .availableProcessors();
+
+  private final File file;
+  private final int port;
+  private volatile Database db;
+  private long mtime;
+  private long size;
+
+  public QueryServer(File file, int port) {
+    this.file = file;
+    this.port = port;
+  }
+
+  private void load() throws IOException {
+    long new_mtime = file.lastModified();
+    long new_size = file.length();
+    Database new_db = new Database(file);
+    mtime = new_mtime;
+    size = new_size;
+    db = new_db;
+  }
+
+  /**
+   * Serve queries until the process is terminated.
+   */
+  public void run() throws IOException {
+    load();
+
+    HttpServer server = HttpServer.create(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/query", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          serve(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.createContext("/metrics", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          ByteArrayOutputStream bos = new ByteArrayOutputStream();
+          Writer writer = new OutputStreamWriter(bos, "UTF-8");
+          Metrics.writePrometheus(writer);
+          exchange.getResponseHeaders().set("Content-Type",
+                  "text/plain; version=0.0.4; charset=UTF-8");
+          exchange.sendResponseHeaders(200, bos.size());
+          OutputStream os = exchange.getResponseBody();
+          bos.writeTo(os);
+          os.close();
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(Executors.newFixedThreadPool(N_THREAD));
+    server.start();
+    System.err.println("Serving queries on " + server.getAddress());
+
+    for (;;) {
+      try {
+        Thread.sleep(POLL_INTERVAL);
+      } catch (InterruptedException e) {
+        server.stop(0);
+        return;
+      }
+      if (file.lastModified() == mtime && file.length() == size)
+        continue;
+      try {
+        System.err.println("Database file changed, reloading...");
+        load();
+      } catch (IOException e) {
+        System.err.println("Failed to reload database: " + e);
+      }
+    }
+  }
+
+  private static String decode(String s) throws UnsupportedEncodingException {
+    return URLDecoder.decode(s, "UTF-8");
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    String query = null;
+    List<String> args = new ArrayList<String>();
+    boolean recursive = false;
+    boolean alternatives = false;
+    String format = null;
+    String params = exchange.getRequestURI().getRawQuery();
+    if (params != null) {
+      for (String param : params.split("&")) {
+        int eq = param.indexOf('=');
+        String name = decode(eq >= 0 ? param.substring(0, eq) : param);
+        String value = eq >= 0 ? decode(param.substring(eq + 1)) : "";
+        if (name.equals("q"))
+          query = value;
+        else if (name.equals("arg"))
+          args.add(value);
+        else if (name.equals("recursive"))
+          recursive = true;
+        else if (name.equals("alternatives"))
+          alternatives = true;
+        else if (name.equals("format"))
+          format = value;
+      }
+    }
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bos, false, "UTF-8");
+    int status = 200;
+    try {
+      if (query == null)
+        throw new QueryException("Missing query.");
+      for (String arg : args)
+        if (Database.is_local_package(arg))
+          throw new QueryException("Local files can't be queried by server: "
+                  + arg);
+      ResultWriter writer = ResultWriter.create(format, bos);
+      QueryRunner.run_query(db, query, args.toArray(new String[args.size()]),
+              recursive, alternatives, writer);
+      writer.finish();
+    } catch (QueryException e) {
+      status = 400;
+      bos.reset();
+      if (e.getMessage() != null)
+        out.println(e.getMessage());
+    } catch (RuntimeException e) {
+      status = 500;
+      bos.reset();
+      out.println("Unhandled exception: " + e);
+      e.printStackTrace();
+    }
+    out.flush();
+
+    exchange.getResponseHeaders().set("Content-Type",
+            "text/plain; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bos.size() > 0 ? bos.size() : -1);
+    if (bos.size() > 0) {
+      OutputStream os = exchange.getResponseBody();
+      bos.writeTo(os);
+      os.close();
+    }
+  }
+}
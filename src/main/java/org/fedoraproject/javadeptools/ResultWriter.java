@@ -0,0 +1,314 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writer of query results in one of supported formats.
+ * <p>
+ * Results consist of groups, each having a name and a list of values, for
+ * example a package and classes it provides, and of standalone items, for
+ * example packages printed by {@code --list}. They are written as they are
+ * produced, through a large buffer, so that neither all results need to be
+ * kept in memory nor every line is flushed. Supported formats are:
+ * <dl>
+ * <dt>text</dt>
+ * <dd>name of each group followed by a colon, and its values indented with
+ * tabs on separate lines; items on separate lines</dd>
+ * <dt>jsonl</dt>
+ * <dd>JSON object on each line, {@code {"name":NAME,"values":[VALUE...]}}
+ * for groups and {@code {"name":NAME}} for items</dd>
+ * <dt>tsv</dt>
+ * <dd>group name and value separated with tab on each line, groups without
+ * values and items on lines of their own; tabs, newlines and backslashes in
+ * names are escaped with backslash</dd>
+ * <dt>dot</dt>
+ * <dd>Graphviz graph with edge from each group to each of its values and a
+ * node for each item and group without values</dd>
+ * </dl>
+ * Writers are not thread-safe.
+ * 
+ * @author Mikolaj Izdebski
+ */
+abstract class ResultWriter {
+  static final String[] FORMATS = { "text", "jsonl", "tsv", "dot" };
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  protected final Writer out;
+  // Name of group whose values are being written, or null.
+  protected String group;
+  // Number of values written for current group.
+  protected int nValues;
+
+  protected ResultWriter(OutputStream os) {
+    out = new BufferedWriter(new OutputStreamWriter(os, UTF8), BUFFER_SIZE);
+  }
+
+  /**
+   * Create writer writing results in given format to given stream.
+   * 
+   * @throws QueryException
+   *           if the format is not supported
+   */
+  static ResultWriter create(String format, OutputStream os)
+          throws QueryException {
+    if (format == null || format.equals("text"))
+      return new Text(os);
+    if (format.equals("jsonl"))
+      return new JsonLines(os);
+    if (format.equals("tsv"))
+      return new Tsv(os);
+    if (format.equals("dot"))
+      return new Dot(os);
+    throw new QueryException("Unsupported output format: " + format);
+  }
+
+  /**
+   * Start a new group of values.
+   */
+  public void group(String name) throws IOException {
+    end_group();
+    group = name;
+    nValues = 0;
+    begin_group();
+  }
+
+  /**
+   * Write value belonging to the current group.
+   */
+  public void value(String value) throws IOException {
+    write_value(value);
+    nValues++;
+  }
+
+  /**
+   * Write standalone item.
+   */
+  public void item(String name) throws IOException {
+    end_group();
+    write_item(name);
+  }
+
+  /**
+   * Finish writing results and write all of them to the underlying stream,
+   * which is not closed.
+   */
+  public void finish() throws IOException {
+    end_group();
+    write_trailer();
+    out.flush();
+  }
+
+  private void end_group() throws IOException {
+    if (group != null) {
+      write_end_group();
+      group = null;
+    }
+  }
+
+  protected void begin_group() throws IOException {
+  }
+
+  protected abstract void write_value(String value) throws IOException;
+
+  protected void write_end_group() throws IOException {
+  }
+
+  protected abstract void write_item(String name) throws IOException;
+
+  protected void write_trailer() throws IOException {
+  }
+
+  private static class Text extends ResultWriter {
+    Text(OutputStream os) {
+      super(os);
+    }
+
+    @Override
+    protected void begin_group() throws IOException {
+      out.write(group);
+      out.write(":\n");
+    }
+
+    @Override
+    protected void write_value(String value) throws IOException {
+      out.write('\t');
+      out.write(value);
+      out.write('\n');
+    }
+
+    @Override
+    protected void write_item(String name) throws IOException {
+      out.write(name);
+      out.write('\n');
+    }
+  }
+
+  private static class JsonLines extends ResultWriter {
+    JsonLines(OutputStream os) {
+      super(os);
+    }
+
+    private void quote(String s) throws IOException {
+      out.write('"');
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c == '"' || c == '\\') {
+          out.write('\\');
+          out.write(c);
+        } else if (c < 0x20) {
+          out.write(String.format("\\u%04x", (int) c));
+        } else {
+          out.write(c);
+        }
+      }
+      out.write('"');
+    }
+
+    @Override
+    protected void begin_group() throws IOException {
+      out.write("{\"name\":");
+      quote(group);
+      out.write(",\"values\":[");
+    }
+
+    @Override
+    protected void write_value(String value) throws IOException {
+      if (nValues > 0)
+        out.write(',');
+      quote(value);
+    }
+
+    @Override
+    protected void write_end_group() throws IOException {
+      out.write("]}\n");
+    }
+
+    @Override
+    protected void write_item(String name) throws IOException {
+      out.write("{\"name\":");
+      quote(name);
+      out.write("}\n");
+    }
+  }
+
+  private static class Tsv extends ResultWriter {
+    Tsv(OutputStream os) {
+      super(os);
+    }
+
+    private void escape(String s) throws IOException {
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c == '\t')
+          out.write("\\t");
+        else if (c == '\n')
+          out.write("\\n");
+        else if (c == '\r')
+          out.write("\\r");
+        else if (c == '\\')
+          out.write("\\\\");
+        else
+          out.write(c);
+      }
+    }
+
+    @Override
+    protected void write_value(String value) throws IOException {
+      escape(group);
+      out.write('\t');
+      escape(value);
+      out.write('\n');
+    }
+
+    @Override
+    protected void write_end_group() throws IOException {
+      if (nValues == 0)
+        write_item(group);
+    }
+
+    @Override
+    protected void write_item(String name) throws IOException {
+      escape(name);
+      out.write('\n');
+    }
+  }
+
+  private static class Dot extends ResultWriter {
+    private boolean started;
+
+    Dot(OutputStream os) {
+      super(os);
+    }
+
+    private void indent() throws IOException {
+      if (!started) {
+        out.write("digraph dependencies {\n");
+        started = true;
+      }
+      out.write("  ");
+    }
+
+    private void quote(String s) throws IOException {
+      out.write('"');
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c == '"' || c == '\\')
+          out.write('\\');
+        out.write(c);
+      }
+      out.write('"');
+    }
+
+    @Override
+    protected void write_value(String value) throws IOException {
+      indent();
+      quote(group);
+      out.write(" -> ");
+      quote(value);
+      out.write(";\n");
+    }
+
+    @Override
+    protected void write_end_group() throws IOException {
+      if (nValues == 0)
+        write_item(group);
+    }
+
+    @Override
+    protected void write_item(String name) throws IOException {
+      indent();
+      quote(name);
+      out.write(";\n");
+    }
+
+    @Override
+    protected void write_trailer() throws IOException {
+      if (started) {
+        out.write("}\n");
+        started = false;
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+/**
+ * A pool of distinct integer lists. Each distinct list is stored only once, as
+ * a row of an {@link IntTable}, and identified by its row index.
+ *
+ * @author Mikolaj Izdebski
+ */
+class RowInterner {
+  private final IntTable table = new IntTable();
+  // Open-addressing hash table of row indexes plus one (zero means empty).
+  private int[] slots = new int[1024];
+
+  private static int hash(int[] values, int off, int len) {
+    int h = 1;
+    for (int i = off; i < off + len; i++)
+      h = 31 * h + values[i];
+    return h ^ (h >>> 16);
+  }
+
+  private static int hash(IntTable table, int row) {
+    int h = 1;
+    for (int i = table.start(row); i < table.end(row); i++)
+      h = 31 * h + table.get(i);
+    return h ^ (h >>> 16);
+  }
+
+  private boolean equal(int row, int[] values, int off, int len) {
+    if (table.length(row) != len)
+      return false;
+    int start = table.start(row);
+    for (int i = 0; i < len; i++)
+      if (table.get(start + i) != values[off + i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Get index of row equal to given list, adding a new row if needed.
+   */
+  public int intern(int[] values, int off, int len) {
+    int mask = slots.length - 1;
+    int i = hash(values, off, len) & mask;
+    for (; slots[i] != 0; i = (i + 1) & mask)
+      if (equal(slots[i] - 1, values, off, len))
+        return slots[i] - 1;
+
+    int row = table.add(values, off, len);
+    slots[i] = row + 1;
+    if (2 * table.size() > slots.length)
+      rehash();
+    return row;
+  }
+
+  public int intern(IntList list) {
+    return intern(list.array(), 0, list.size());
+  }
+
+  /**
+   * Get index of row equal to given list.
+   *
+   * @return row index or -1 if there is no such row
+   */
+  public int find(int[] values, int off, int len) {
+    int mask = slots.length - 1;
+    for (int i = hash(values, off, len) & mask; slots[i] != 0; i = (i + 1)
+            & mask)
+      if (equal(slots[i] - 1, values, off, len))
+        return slots[i] - 1;
+    return -1;
+  }
+
+  private void rehash() {
+    slots = new int[2 * slots.length];
+    int mask = slots.length - 1;
+    for (int r = 0; r < table.size(); r++) {
+      int i = hash(table, r) & mask;
+      while (slots[i] != 0)
+        i = (i + 1) & mask;
+      slots[i] = r + 1;
+    }
+  }
+
+  public IntTable table() {
+    return table;
+  }
+}
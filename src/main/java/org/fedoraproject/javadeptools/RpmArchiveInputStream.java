@@ -15,60 +15,239 @@
  */
 package org.fedoraproject.javadeptools;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ProcessBuilder.Redirect;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.cpio.CpioArchiveEntry;
 import org.apache.commons.compress.archivers.cpio.CpioArchiveInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.tukaani.xz.XZInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
 
 /**
  * A class for reading RPM package as an archive.
+ * <p>
+ * RPM lead, signature and header are parsed in-process and the compressed cpio
+ * payload which follows them is decompressed on the fly, so no external
+ * processes (like rpm2cpio) are needed.
+ * <p>
+ * Jar files contained in the package are counted from the file list in its
+ * header. Payload is decompressed only when it is first read, so packages
+ * without jars can be skipped without decompressing it at all, and
+ * {@link #getNextJarEntry()} stops decompressing it after the last jar.
  *
  * @author Mikolaj Izdebski
  */
 class RpmArchiveInputStream extends ArchiveInputStream {
-  private final Process child;
-  private static final File bitBucket = new File("/dev/null");
-  private final ArchiveInputStream in;
+  private static final int BUFFER_SIZE = 65536;
+  private static final int S_IFMT = 0170000;
+  private static final int S_IFREG = 0100000;
 
-  public RpmArchiveInputStream(File rpm) throws IOException {
-    ProcessBuilder pb = new ProcessBuilder("rpm2cpio");
-    pb.redirectInput(Redirect.from(rpm));
-    pb.redirectError(bitBucket);
+  private static final Metrics.Counter DECOMPRESSED = Metrics.counter(
+          "rpm_decompressed_bytes_total",
+          "Bytes of RPM payload produced by decompression");
 
-    child = pb.start();
-    InputStream childIn = child.getInputStream();
-    in = new CpioArchiveInputStream(childIn);
+  /**
+   * Stream counting bytes read from decompressor. It is read through a buffer,
+   * so that counting is done once per chunk.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0)
+        DECOMPRESSED.increment();
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      int r = in.read(buf, off, len);
+      if (r > 0)
+        DECOMPRESSED.add(r);
+      return r;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      if (skipped > 0)
+        DECOMPRESSED.add(skipped);
+      return skipped;
+    }
   }
 
-  public void close() throws IOException {
-    in.close();
-    // If rpm2cpio hasn't terminated yet it should get SIGPIPE now.
+  private final File rpm;
+  private final RpmHeader signature;
+  private final RpmHeader header;
+  private final DataInputStream payload;
+  private final int nJars;
+  private int remainingJars;
+  private ArchiveInputStream in;
+
+  public RpmArchiveInputStream(File rpm) throws IOException {
+    this.rpm = rpm;
+    InputStream fis = new FileInputStream(rpm);
     try {
-      int status = child.waitFor();
-      if (status != 0)
-        throw new IOException("rpm2cpio exited with exit status " + status);
-    } catch (InterruptedException e) {
-      throw new IOException("Interruped while reaping child process", e);
+      payload = new DataInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+      RpmHeader.skipLead(payload);
+      signature = new RpmHeader(payload, true);
+      header = new RpmHeader(payload, false);
+
+      String format = header.getString(RpmHeader.RPMTAG_PAYLOADFORMAT);
+      if (format != null && !format.equals("cpio"))
+        throw new IOException("unsupported RPM payload format: " + format);
+
+      nJars = count_jars(header);
+      remainingJars = nJars;
+    } catch (IOException e) {
+      fis.close();
+      throw new IOException("failed to read " + rpm + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Count jar files listed in given RPM header. Directories, symbolic links
+   * and ghost files, which don't have contents in payload, are not counted.
+   * 
+   * @return number of jar files, or -1 if the header doesn't list files
+   */
+  private static int count_jars(RpmHeader header) throws IOException {
+    String[] names = header.getStringArray(RpmHeader.RPMTAG_BASENAMES);
+    if (names == null)
+      names = header.getStringArray(RpmHeader.RPMTAG_OLDFILENAMES);
+    if (names == null)
+      return -1;
+    int[] modes = header.getIntArray(RpmHeader.RPMTAG_FILEMODES);
+    int[] flags = header.getIntArray(RpmHeader.RPMTAG_FILEFLAGS);
+
+    int n = 0;
+    for (int i = 0; i < names.length; i++) {
+      if (!names[i].endsWith(".jar"))
+        continue;
+      if (modes != null && i < modes.length
+              && (modes[i] & S_IFMT) != S_IFREG)
+        continue;
+      if (flags != null && i < flags.length
+              && (flags[i] & RpmHeader.RPMFILE_GHOST) != 0)
+        continue;
+      n++;
     }
+    return n;
+  }
+
+  /**
+   * Start decompressing payload, unless this was already done.
+   */
+  private ArchiveInputStream payload() throws IOException {
+    if (in == null) {
+      try {
+        String compressor = header
+                .getString(RpmHeader.RPMTAG_PAYLOADCOMPRESSOR);
+        in = new CpioArchiveInputStream(new BufferedInputStream(
+                new CountingInputStream(decompress(payload, compressor)),
+                BUFFER_SIZE));
+      } catch (IOException e) {
+        throw new IOException("failed to read " + rpm + ": "
+                + e.getMessage(), e);
+      }
+    }
+    return in;
+  }
+
+  private static InputStream decompress(InputStream is, String compressor)
+          throws IOException {
+    if (compressor == null || compressor.equals("gzip"))
+      return new GZIPInputStream(is, BUFFER_SIZE);
+    if (compressor.equals("xz"))
+      return new XZInputStream(is);
+    if (compressor.equals("zstd"))
+      return new ZstdInputStream(is);
+    if (compressor.equals("bzip2"))
+      return new BZip2CompressorInputStream(is);
+    throw new IOException("unsupported RPM payload compressor: " + compressor);
+  }
+
+  /**
+   * Get signature header of the RPM package.
+   */
+  RpmHeader getSignature() {
+    return signature;
+  }
+
+  /**
+   * Get main header of the RPM package.
+   */
+  RpmHeader getHeader() {
+    return header;
+  }
+
+  /**
+   * Get number of jar files the RPM package contains, according to its header,
+   * or -1 if the header doesn't list files, in which case the whole payload is
+   * searched for jar files.
+   */
+  int getJarCount() {
+    return nJars;
+  }
+
+  public void close() throws IOException {
+    if (in != null)
+      in.close();
+    else
+      payload.close();
   }
 
   public ArchiveEntry getNextEntry() throws IOException {
-    return in.getNextEntry();
+    return payload().getNextEntry();
+  }
+
+  /**
+   * Get next entry of payload which is a jar file, skipping other entries.
+   * After all jar files listed in header were returned, no more payload is
+   * decompressed. If header doesn't list files, the whole payload is read.
+   * 
+   * @return the entry or {@code null} if there are no more jar files
+   */
+  ArchiveEntry getNextJarEntry() throws IOException {
+    if (remainingJars == 0)
+      return null;
+    ArchiveEntry entry;
+    while ((entry = getNextEntry()) != null) {
+      if (entry.isDirectory() || !entry.getName().endsWith(".jar"))
+        continue;
+      if (entry instanceof CpioArchiveEntry
+              && !((CpioArchiveEntry) entry).isRegularFile())
+        continue;
+      if (remainingJars > 0)
+        remainingJars--;
+      return entry;
+    }
+    return null;
   }
 
   public int read() throws IOException {
-    return in.read();
+    return payload().read();
   }
 
   public int read(byte[] buf) throws IOException {
-    return in.read(buf);
+    return payload().read(buf);
   }
 
   public int read(byte[] buf, int off, int len) throws IOException {
-    return in.read(buf, off, len);
+    return payload().read(buf, off, len);
   }
 }
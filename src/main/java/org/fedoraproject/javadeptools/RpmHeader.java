@@ -0,0 +1,278 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A class representing a single RPM header structure (either the signature
+ * header or the main package header).
+ *
+ * @author Mikolaj Izdebski
+ */
+class RpmHeader {
+  static final int SIGTAG_SHA1 = 269;
+  static final int SIGTAG_SHA256 = 273;
+
+  static final int RPMTAG_OLDFILENAMES = 1027;
+  static final int RPMTAG_FILEMODES = 1030;
+  static final int RPMTAG_FILEFLAGS = 1037;
+  static final int RPMTAG_PROVIDENAME = 1047;
+  static final int RPMTAG_REQUIREFLAGS = 1048;
+  static final int RPMTAG_REQUIRENAME = 1049;
+  static final int RPMTAG_DIRINDEXES = 1116;
+  static final int RPMTAG_BASENAMES = 1117;
+  static final int RPMTAG_DIRNAMES = 1118;
+  static final int RPMTAG_PAYLOADFORMAT = 1124;
+  static final int RPMTAG_PAYLOADCOMPRESSOR = 1125;
+
+  static final int RPMSENSE_RPMLIB = 1 << 24;
+  static final int RPMFILE_GHOST = 1 << 6;
+
+  private static final int TYPE_INT8 = 2;
+  private static final int TYPE_INT16 = 3;
+  private static final int TYPE_INT32 = 4;
+  private static final int TYPE_STRING = 6;
+  private static final int TYPE_BIN = 7;
+  private static final int TYPE_STRING_ARRAY = 8;
+  private static final int TYPE_I18NSTRING = 9;
+
+  private static final int HEADER_MAGIC = 0x8eade801;
+  private static final int MAX_INDEX = 0x10000;
+  private static final int MAX_DATA = 0x10000000;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static class Entry {
+    int type;
+    int offset;
+    int count;
+  }
+
+  private final Map<Integer, Entry> index = new HashMap<Integer, Entry>();
+  private final byte[] data;
+
+  /**
+   * Read header structure from given input stream.
+   *
+   * @param is
+   *          the input stream to read header from
+   * @param align
+   *          whether to skip padding which aligns header end to 8 bytes (used
+   *          by signature header)
+   * @throws IOException
+   *           if I/O exception occurs or the header is malformed
+   */
+  public RpmHeader(DataInputStream is, boolean align) throws IOException {
+    if (is.readInt() != HEADER_MAGIC)
+      throw new IOException("bad RPM header magic");
+    is.readInt();
+    int nindex = is.readInt();
+    int hsize = is.readInt();
+    if (nindex < 0 || nindex > MAX_INDEX || hsize < 0 || hsize > MAX_DATA)
+      throw new IOException("RPM header too large");
+
+    for (int i = 0; i < nindex; i++) {
+      Entry ent = new Entry();
+      int tag = is.readInt();
+      ent.type = is.readInt();
+      ent.offset = is.readInt();
+      ent.count = is.readInt();
+      if (ent.offset < 0 || ent.offset > hsize || ent.count < 0)
+        throw new IOException("malformed RPM header index entry");
+      index.put(tag, ent);
+    }
+
+    data = new byte[hsize];
+    is.readFully(data);
+
+    if (align)
+      skipFully(is, (8 - (hsize & 7)) & 7);
+  }
+
+  /**
+   * Skip RPM lead, which precedes signature header.
+   */
+  static void skipLead(DataInputStream is) throws IOException {
+    if (is.readInt() != 0xedabeedb)
+      throw new IOException("not a RPM file (bad lead magic)");
+    skipFully(is, 96 - 4);
+  }
+
+  /**
+   * Get digest of main header, as recorded in signature header. SHA-256 digest
+   * is preferred over SHA-1. Digests are padded with zeroes to
+   * {@link Fingerprint#DIGEST_SIZE} bytes.
+   *
+   * @return header digest or {@code null} if signature contains none
+   */
+  byte[] getHeaderDigest() throws IOException {
+    String hex = getString(SIGTAG_SHA256);
+    if (hex == null)
+      hex = getString(SIGTAG_SHA1);
+    if (hex == null || hex.length() % 2 != 0
+            || hex.length() > 2 * Fingerprint.DIGEST_SIZE)
+      return null;
+
+    byte[] digest = new byte[Fingerprint.DIGEST_SIZE];
+    for (int i = 0; i < hex.length() / 2; i++) {
+      int hi = Character.digit(hex.charAt(2 * i), 16);
+      int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (hi < 0 || lo < 0)
+        return null;
+      digest[i] = (byte) (hi << 4 | lo);
+    }
+    return digest;
+  }
+
+  /**
+   * Read header digest of given RPM file. Only lead and signature header are
+   * read.
+   *
+   * @return header digest or {@code null} if signature contains none
+   */
+  static byte[] readDigest(File rpm) throws IOException {
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(rpm)));
+    try {
+      skipLead(dis);
+      return new RpmHeader(dis, true).getHeaderDigest();
+    } finally {
+      dis.close();
+    }
+  }
+
+  private static void skipFully(InputStream is, long n) throws IOException {
+    while (n > 0) {
+      long skipped = is.skip(n);
+      if (skipped <= 0) {
+        if (is.read() < 0)
+          throw new EOFException();
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  private int stringEnd(int pos) throws IOException {
+    int end = pos;
+    while (end < data.length && data[end] != 0)
+      end++;
+    if (end == data.length)
+      throw new IOException("unterminated string in RPM header");
+    return end;
+  }
+
+  /**
+   * Get value of given tag as a single string.
+   *
+   * @return tag value or {@code null} if the tag is not present
+   */
+  public String getString(int tag) throws IOException {
+    String[] array = getStringArray(tag);
+    return array == null || array.length == 0 ? null : array[0];
+  }
+
+  /**
+   * Get value of given tag as an array of strings.
+   *
+   * @return tag value or {@code null} if the tag is not present
+   */
+  public String[] getStringArray(int tag) throws IOException {
+    Entry ent = index.get(tag);
+    if (ent == null)
+      return null;
+    if (ent.type != TYPE_STRING && ent.type != TYPE_STRING_ARRAY
+            && ent.type != TYPE_I18NSTRING)
+      throw new IOException("RPM header tag " + tag + " is not a string");
+
+    int count = ent.type == TYPE_STRING ? 1 : ent.count;
+    String[] result = new String[count];
+    int pos = ent.offset;
+    for (int i = 0; i < count; i++) {
+      int end = stringEnd(pos);
+      result[i] = new String(data, pos, end - pos, UTF8);
+      pos = end + 1;
+    }
+    return result;
+  }
+
+  /**
+   * Get value of given tag as an array of integers. Values of 8-bit and 16-bit
+   * integer tags are widened to int.
+   *
+   * @return tag value or {@code null} if the tag is not present
+   */
+  public int[] getIntArray(int tag) throws IOException {
+    Entry ent = index.get(tag);
+    if (ent == null)
+      return null;
+
+    int width;
+    switch (ent.type) {
+    case TYPE_INT8:
+      width = 1;
+      break;
+    case TYPE_INT16:
+      width = 2;
+      break;
+    case TYPE_INT32:
+      width = 4;
+      break;
+    default:
+      throw new IOException("RPM header tag " + tag + " is not an integer");
+    }
+    if (ent.offset + (long) width * ent.count > data.length)
+      throw new IOException("RPM header tag " + tag + " out of bounds");
+
+    int[] result = new int[ent.count];
+    int pos = ent.offset;
+    for (int i = 0; i < ent.count; i++) {
+      int val = 0;
+      for (int j = 0; j < width; j++)
+        val = (val << 8) | (data[pos++] & 0xff);
+      result[i] = val;
+    }
+    return result;
+  }
+
+  /**
+   * Get value of given binary tag.
+   *
+   * @return tag value or {@code null} if the tag is not present
+   */
+  public byte[] getBinary(int tag) throws IOException {
+    Entry ent = index.get(tag);
+    if (ent == null)
+      return null;
+    if (ent.type != TYPE_BIN)
+      throw new IOException("RPM header tag " + tag + " is not binary");
+    if (ent.offset + (long) ent.count > data.length)
+      throw new IOException("RPM header tag " + tag + " out of bounds");
+
+    byte[] result = new byte[ent.count];
+    System.arraycopy(data, ent.offset, result, 0, ent.count);
+    return result;
+  }
+}
@@ -0,0 +1,202 @@
+/*-
+ * Copyright (c) 2012 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedoraproject.javadeptools;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A dictionary of interned names. Each distinct name (of package or class) is
+ * assigned a small integer id, which is used instead of the name everywhere
+ * else in the database.
+ * <p>
+ * While ids are assigned in lexicographical order of names, lookups are done
+ * by binary search and no hash index is kept in memory. Once names are
+ * interned out of order, the table is no longer sorted until {@link #sort()}
+ * is called.
+ * <p>
+ * Symbol tables read from database file are backed by a
+ * {@link FrontCodedDictionary} and are decoded to the heap only when new names
+ * are interned.
+ *
+ * @author Mikolaj Izdebski
+ */
+class SymbolTable {
+  private String[] names;
+  private int size;
+  private boolean sorted = true;
+  private Map<String, Integer> index;
+  private FrontCodedDictionary dict;
+
+  public SymbolTable() {
+    names = new String[1024];
+  }
+
+  /**
+   * Create symbol table from sorted array of distinct names.
+   */
+  public SymbolTable(String[] sortedNames) {
+    names = sortedNames;
+    size = sortedNames.length;
+  }
+
+  /**
+   * Create symbol table backed by given dictionary.
+   */
+  public SymbolTable(FrontCodedDictionary dict) {
+    this.dict = dict;
+    size = dict.size();
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String get(int id) {
+    return names != null ? names[id] : dict.get(id);
+  }
+
+  /**
+   * Whether symbol ids are ordered the same way as names they represent.
+   */
+  public boolean isSorted() {
+    return sorted;
+  }
+
+  /**
+   * Find id of given name.
+   *
+   * @return symbol id or -1 if the name was never interned
+   */
+  public int lookup(String name) {
+    if (names == null)
+      return dict.lookup(name);
+    if (index != null) {
+      Integer id = index.get(name);
+      return id != null ? id : -1;
+    }
+    if (sorted) {
+      int id = Arrays.binarySearch(names, 0, size, name);
+      return id >= 0 ? id : -1;
+    }
+    buildIndex();
+    return lookup(name);
+  }
+
+  private void buildIndex() {
+    if (names == null) {
+      names = new String[Math.max(size, 1)];
+      for (int i = 0; i < size; i++)
+        names[i] = dict.get(i);
+      dict = null;
+    }
+    index = new HashMap<String, Integer>(2 * size);
+    for (int i = 0; i < size; i++)
+      index.put(names[i], i);
+  }
+
+  /**
+   * Find the least id of name which is not less than given name. Symbol table
+   * must be sorted.
+   *
+   * @return symbol id, or size of the table if all names are less than given
+   *         one
+   */
+  public int lowerBound(String name) {
+    if (names == null)
+      return dict.lowerBound(name);
+    int id = Arrays.binarySearch(names, 0, size, name);
+    return id >= 0 ? id : -id - 1;
+  }
+
+  /**
+   * Iterate over names with ids in given range, in order of their ids.
+   */
+  public Iterator<String> iterator(int from, int to) {
+    if (names == null)
+      return dict.iterator(from, to);
+    return Arrays.asList(names).subList(from, to).iterator();
+  }
+
+  /**
+   * Get id of given name, assigning a new one if needed.
+   */
+  public int intern(String name) {
+    if (index == null)
+      buildIndex();
+    Integer id = index.get(name);
+    if (id != null)
+      return id;
+
+    if (size == names.length)
+      names = Arrays.copyOf(names, Math.max(1, 2 * size));
+    if (size > 0 && names[size - 1].compareTo(name) > 0)
+      sorted = false;
+    names[size] = name;
+    index.put(name, size);
+    return size++;
+  }
+
+  /**
+   * Reassign symbol ids so that they are ordered the same way as names and
+   * drop hash index.
+   *
+   * @return array mapping old ids to new ones or {@code null} if the table was
+   *         already sorted and ids didn't change
+   */
+  public int[] sort() {
+    if (names == null)
+      return null;
+    index = null;
+    names = Arrays.copyOf(names, size);
+    if (sorted)
+      return null;
+
+    String[] oldNames = names;
+    names = oldNames.clone();
+    Arrays.sort(names);
+    int[] remap = new int[size];
+    for (int i = 0; i < size; i++)
+      remap[i] = Arrays.binarySearch(names, oldNames[i]);
+    sorted = true;
+    return remap;
+  }
+
+  /**
+   * Encode all names as a {@link FrontCodedDictionary}, which is done without
+   * decoding them if this table is backed by one. The table must be sorted.
+   */
+  public byte[] encode() {
+    if (names == null)
+      return dict.toByteArray();
+    return FrontCodedDictionary.encode(toArray());
+  }
+
+  /**
+   * Get all names, ordered by their ids.
+   */
+  public String[] toArray() {
+    if (names == null) {
+      String[] result = new String[size];
+      for (int i = 0; i < size; i++)
+        result[i] = dict.get(i);
+      return result;
+    }
+    return Arrays.copyOf(names, size);
+  }
+}